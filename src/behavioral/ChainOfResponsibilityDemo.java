@@ -1,5 +1,29 @@
 package behavioral;
 
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
 /**
  * Chain of Responsibility is a behavioral design pattern that lets you pass
  * requests along a chain of handlers. Upon receiving a request, each handler
@@ -28,6 +52,194 @@ interface Chain {
 
 	void calculate(Numbers request);
 
+	// The Object data is forwarded to, or null if
+	// this is the end of the chain
+
+	Chain getNextChain();
+
+	// The calculation this Object is able to solve
+
+	Calculation getCalculation();
+
+	// Solves this Object's calculation for the requests at
+	// positions[from..to) of the column arrays, writing each
+	// answer to the same position of results
+
+	void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results);
+
+	// Solves this Object's calculation for the requests at
+	// [from..to) of the column arrays. A straight loop over
+	// contiguous arrays, which the JIT can vectorize
+
+	void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results);
+
+	// Solves this Object's calculation for a single pair
+	// of numbers and returns the answer
+
+	long calculate(int number1, int number2);
+
+}
+
+// The calculations a chain knows about. Requests are
+// matched on this opcode instead of on the String
+
+enum Calculation {
+	ADD("add", '+'), SUB("sub", '-'), MULT("mult", '*'), DIV("div", '/'), UNSUPPORTED(null, '?');
+
+	private final String name;
+	private final char symbol;
+
+	Calculation(String name, char symbol) {
+		this.name = name;
+		this.symbol = symbol;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public char getSymbol() {
+		return symbol;
+	}
+
+	public static Calculation fromName(String name) {
+		for (Calculation calculation : values()) {
+			if (calculation.name != null && calculation.name.equals(name)) {
+				return calculation;
+			}
+		}
+		return UNSUPPORTED;
+	}
+}
+
+// Where the Objects in the chain publish their answers.
+// The callbacks take primitives so publishing an answer
+// needs no String building
+
+interface ResultSink {
+
+	void result(Calculation calculation, int number1, int number2, long result);
+
+	void unsupported(int number1, int number2);
+
+}
+
+// Prints answers to System.out the way the chain always has
+
+class ConsoleSink implements ResultSink {
+
+	@Override
+	public void result(Calculation calculation, int number1, int number2, long result) {
+		String line = number1 + " " + calculation.getSymbol() + " " + number2 + " = " + result;
+		if (calculation == Calculation.DIV) {
+			System.out.print(line);
+		} else {
+			System.out.println(line);
+		}
+	}
+
+	@Override
+	public void unsupported(int number1, int number2) {
+		System.out.println("Only works for add, sub, mult, and div");
+	}
+}
+
+// Discards every answer
+
+class NoOpSink implements ResultSink {
+
+	@Override
+	public void result(Calculation calculation, int number1, int number2, long result) {
+	}
+
+	@Override
+	public void unsupported(int number1, int number2) {
+	}
+}
+
+// Formats answers as ASCII straight into a reusable byte buffer
+// and writes the buffer to the stream only when it fills up or
+// flush() is called. Every answer ends with a line break
+
+class BufferedSink implements ResultSink, Flushable {
+
+	private static final int MAX_LINE = 64;
+	private static final byte[] UNSUPPORTED = "Only works for add, sub, mult, and div\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position;
+
+	public BufferedSink(OutputStream out, int capacity) {
+		if (capacity < MAX_LINE) {
+			throw new IllegalArgumentException("capacity must be at least " + MAX_LINE);
+		}
+		this.out = out;
+		this.buffer = new byte[capacity];
+	}
+
+	@Override
+	public synchronized void result(Calculation calculation, int number1, int number2, long result) {
+		reserve(MAX_LINE);
+		putLong(number1);
+		buffer[position++] = ' ';
+		buffer[position++] = (byte) calculation.getSymbol();
+		buffer[position++] = ' ';
+		putLong(number2);
+		buffer[position++] = ' ';
+		buffer[position++] = '=';
+		buffer[position++] = ' ';
+		putLong(result);
+		buffer[position++] = '\n';
+	}
+
+	@Override
+	public synchronized void unsupported(int number1, int number2) {
+		reserve(UNSUPPORTED.length);
+		System.arraycopy(UNSUPPORTED, 0, buffer, position, UNSUPPORTED.length);
+		position += UNSUPPORTED.length;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		out.write(buffer, 0, position);
+		out.flush();
+		position = 0;
+	}
+
+	private void reserve(int length) {
+		if (buffer.length - position < length) {
+			try {
+				out.write(buffer, 0, position);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			position = 0;
+		}
+	}
+
+	// Digits are produced from the negative value so that
+	// Long.MIN_VALUE needs no special case
+
+	private void putLong(long value) {
+		long negative = value;
+		if (value < 0) {
+			buffer[position++] = '-';
+		} else {
+			negative = -value;
+		}
+		int digits = 1;
+		for (long rest = negative / 10; rest != 0; rest /= 10) {
+			digits++;
+		}
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' - (negative % 10));
+			negative /= 10;
+		}
+		position = end;
+	}
 }
 
 // This object will contain 2 numbers and a
@@ -39,11 +251,13 @@ class Numbers {
 	private int number2;
 
 	private String calculationWanted;
+	private Calculation calculation;
 
 	public Numbers(int newNumber1, int newNumber2, String calcWanted) {
 		number1 = newNumber1;
 		number2 = newNumber2;
 		calculationWanted = calcWanted;
+		calculation = Calculation.fromName(calcWanted);
 	}
 
 	public int getNumber1() {
@@ -58,11 +272,24 @@ class Numbers {
 		return calculationWanted;
 	}
 
+	public Calculation getCalculation() {
+		return calculation;
+	}
+
 }
 
 class AddNumbers implements Chain {
 
 	private Chain nextInChain;
+	private ResultSink sink;
+
+	public AddNumbers() {
+		this(new ConsoleSink());
+	}
+
+	public AddNumbers(ResultSink sink) {
+		this.sink = sink;
+	}
 
 	// Defines the next Object to receive the
 	// data if this one can't use it
@@ -71,86 +298,636 @@ class AddNumbers implements Chain {
 		nextInChain = nextChain;
 	}
 
+	@Override
+	public Chain getNextChain() {
+		return nextInChain;
+	}
+
+	@Override
+	public Calculation getCalculation() {
+		return Calculation.ADD;
+	}
+
 	// Tries to calculate the data, or passes it
 	// to the Object defined in method setNextChain()
 
 	public void calculate(Numbers request) {
 
-		if (request.getCalcWanted() == "add") {
-			System.out.println(request.getNumber1() + " + " + request.getNumber2() + " = "
-					+ (request.getNumber1() + request.getNumber2()));
+		if (request.getCalculation() == Calculation.ADD) {
+			sink.result(Calculation.ADD, request.getNumber1(), request.getNumber2(),
+					calculate(request.getNumber1(), request.getNumber2()));
 		} else {
 			nextInChain.calculate(request);
 		}
 
 	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			int p = positions[i];
+			results[p] = numbers1[p] + numbers2[p];
+		}
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			results[i] = numbers1[i] + numbers2[i];
+		}
+	}
+
+	@Override
+	public long calculate(int number1, int number2) {
+		return number1 + number2;
+	}
 }
 
 class SubtractNumbers implements Chain {
 
 	private Chain nextInChain;
+	private ResultSink sink;
+
+	public SubtractNumbers() {
+		this(new ConsoleSink());
+	}
+
+	public SubtractNumbers(ResultSink sink) {
+		this.sink = sink;
+	}
 
 	@Override
 	public void setNextChain(Chain nextChain) {
 		nextInChain = nextChain;
 	}
 
+	@Override
+	public Chain getNextChain() {
+		return nextInChain;
+	}
+
+	@Override
+	public Calculation getCalculation() {
+		return Calculation.SUB;
+	}
+
 	@Override
 	public void calculate(Numbers request) {
 
-		if (request.getCalcWanted() == "sub") {
-			System.out.println(request.getNumber1() + " - " + request.getNumber2() + " = "
-					+ (request.getNumber1() - request.getNumber2()));
+		if (request.getCalculation() == Calculation.SUB) {
+			sink.result(Calculation.SUB, request.getNumber1(), request.getNumber2(),
+					calculate(request.getNumber1(), request.getNumber2()));
 		} else {
 			nextInChain.calculate(request);
 		}
 
 	}
 
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			int p = positions[i];
+			results[p] = numbers1[p] - numbers2[p];
+		}
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			results[i] = numbers1[i] - numbers2[i];
+		}
+	}
+
+	@Override
+	public long calculate(int number1, int number2) {
+		return number1 - number2;
+	}
 }
 
 class MultNumbers implements Chain {
 
 	private Chain nextInChain;
+	private ResultSink sink;
+
+	public MultNumbers() {
+		this(new ConsoleSink());
+	}
+
+	public MultNumbers(ResultSink sink) {
+		this.sink = sink;
+	}
 
 	@Override
 	public void setNextChain(Chain nextChain) {
 		nextInChain = nextChain;
 	}
 
+	@Override
+	public Chain getNextChain() {
+		return nextInChain;
+	}
+
+	@Override
+	public Calculation getCalculation() {
+		return Calculation.MULT;
+	}
+
 	@Override
 	public void calculate(Numbers request) {
 
-		if (request.getCalcWanted() == "mult") {
-			System.out.println(request.getNumber1() + " * " + request.getNumber2() + " = "
-					+ (request.getNumber1() * request.getNumber2()));
+		if (request.getCalculation() == Calculation.MULT) {
+			sink.result(Calculation.MULT, request.getNumber1(), request.getNumber2(),
+					calculate(request.getNumber1(), request.getNumber2()));
 		} else {
 			nextInChain.calculate(request);
 		}
 
 	}
 
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			int p = positions[i];
+			results[p] = numbers1[p] * numbers2[p];
+		}
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			results[i] = numbers1[i] * numbers2[i];
+		}
+	}
+
+	@Override
+	public long calculate(int number1, int number2) {
+		return number1 * number2;
+	}
 }
 
 class DivideNumbers implements Chain {
 
 	private Chain nextInChain;
+	private ResultSink sink;
+
+	public DivideNumbers() {
+		this(new ConsoleSink());
+	}
+
+	public DivideNumbers(ResultSink sink) {
+		this.sink = sink;
+	}
 
 	@Override
 	public void setNextChain(Chain nextChain) {
 		nextInChain = nextChain;
 	}
 
+	@Override
+	public Chain getNextChain() {
+		return nextInChain;
+	}
+
+	@Override
+	public Calculation getCalculation() {
+		return Calculation.DIV;
+	}
+
 	@Override
 	public void calculate(Numbers request) {
 
-		if (request.getCalcWanted() == "div") {
-			System.out.print(request.getNumber1() + " / " + request.getNumber2() + " = "
-					+ (request.getNumber1() / request.getNumber2()));
+		if (request.getCalculation() == Calculation.DIV) {
+			sink.result(Calculation.DIV, request.getNumber1(), request.getNumber2(),
+					calculate(request.getNumber1(), request.getNumber2()));
+		} else if (nextInChain != null) {
+			nextInChain.calculate(request);
+		} else {
+			sink.unsupported(request.getNumber1(), request.getNumber2());
+		}
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			int p = positions[i];
+			results[p] = numbers1[p] / numbers2[p];
+		}
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results) {
+		for (int i = from; i < to; i++) {
+			results[i] = numbers1[i] / numbers2[i];
+		}
+	}
+
+	@Override
+	public long calculate(int number1, int number2) {
+		return number1 / number2;
+	}
+}
+
+// Terminal Object for requests no other Object
+// in the chain could solve
+
+class UnsupportedNumbers implements Chain {
+
+	private ResultSink sink;
+	private Chain lastInChain;
+
+	public UnsupportedNumbers() {
+		this(new ConsoleSink());
+	}
+
+	public UnsupportedNumbers(ResultSink sink) {
+		this.sink = sink;
+	}
+
+	// Hands requests to the last Object of an existing chain,
+	// which reports them through its own sink, so they are
+	// reported just as that chain reports them
+
+	public UnsupportedNumbers(Chain lastInChain) {
+		this.lastInChain = lastInChain;
+	}
+
+	@Override
+	public void setNextChain(Chain nextChain) {
+		// Nothing comes after the end of the chain
+	}
+
+	@Override
+	public Chain getNextChain() {
+		return null;
+	}
+
+	@Override
+	public Calculation getCalculation() {
+		return Calculation.UNSUPPORTED;
+	}
+
+	@Override
+	public void calculate(Numbers request) {
+		if (lastInChain != null) {
+			lastInChain.calculate(request);
 		} else {
-			System.out.println("Only works for add, sub, mult, and div");
+			sink.unsupported(request.getNumber1(), request.getNumber2());
 		}
 	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int[] positions, int from, int to, long[] results) {
+		// Nothing to solve, the results are left untouched
+	}
+
+	@Override
+	public void calculate(int[] numbers1, int[] numbers2, int from, int to, long[] results) {
+		// Nothing to solve, the results are left untouched
+	}
+
+	@Override
+	public long calculate(int number1, int number2) {
+		throw new UnsupportedOperationException("Only works for add, sub, mult, and div");
+	}
+}
+
+// Compiled form of a chain. The linked chain is walked
+// once and the first Object able to solve each calculation
+// is stored in a table indexed by the request's opcode, so
+// a request is dispatched with a single array lookup no
+// matter how long the chain is
+
+class CompiledChain {
+
+	private final Chain[] handlers = new Chain[Calculation.values().length];
+
+	public CompiledChain(Chain firstInChain) {
+		if (firstInChain == null) {
+			throw new IllegalArgumentException("A chain needs at least one Object");
+		}
+		Chain lastInChain = firstInChain;
+		for (Chain link = firstInChain; link != null; link = link.getNextChain()) {
+			int opcode = link.getCalculation().ordinal();
+			if (handlers[opcode] == null) {
+				handlers[opcode] = link;
+			}
+			lastInChain = link;
+		}
+
+		// Calculations nobody in the chain solves fall through
+		// to the unsupported handler. Without one they are handed
+		// to the end of the chain, which reports them through
+		// its own sink just like the linked chain does
+
+		Chain unsupported = handlers[Calculation.UNSUPPORTED.ordinal()];
+		if (unsupported == null) {
+			unsupported = new UnsupportedNumbers(lastInChain);
+		}
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i] == null) {
+				handlers[i] = unsupported;
+			}
+		}
+	}
+
+	public void calculate(Numbers request) {
+		handlers[request.getCalculation().ordinal()].calculate(request);
+	}
+
+	// Batch entry point for column arrays. opcodes[i] holds the
+	// ordinal of the Calculation wanted for numbers1[i] and
+	// numbers2[i]. The requests are grouped by opcode first so
+	// each Object runs one tight loop over its own requests.
+	// A group whose requests sit next to each other in the
+	// columns, such as a whole batch of one calculation, is
+	// solved in place by the contiguous loop the JIT vectorizes.
+	// Copying scattered groups next to each other was measured
+	// to cost more than it saves, so they are solved through
+	// their positions.
+	// Returns how many requests were solved; the results of
+	// unsupported requests are left untouched
+
+	public int calculate(int[] numbers1, int[] numbers2, byte[] opcodes, long[] results) {
+		int length = opcodes.length;
+		if (numbers1.length != length || numbers2.length != length || results.length < length) {
+			throw new IllegalArgumentException("Column arrays must have the same length");
+		}
+
+		// Counting sort of the positions by opcode
+
+		int[] groupStart = new int[handlers.length + 1];
+		for (int i = 0; i < length; i++) {
+			groupStart[opcodeAt(opcodes, i) + 1]++;
+		}
+		for (int op = 0; op < handlers.length; op++) {
+			if (groupStart[op + 1] == length) {
+				handlers[op].calculate(numbers1, numbers2, 0, length, results);
+				return handlers[op].getCalculation() != Calculation.UNSUPPORTED ? length : 0;
+			}
+			groupStart[op + 1] += groupStart[op];
+		}
+
+		int[] positions = new int[length];
+		int[] next = groupStart.clone();
+		for (int i = 0; i < length; i++) {
+			positions[next[opcodeAt(opcodes, i)]++] = i;
+		}
+
+		int solved = 0;
+		for (int op = 0; op < handlers.length; op++) {
+			int from = groupStart[op];
+			int to = groupStart[op + 1];
+			if (from == to) {
+				continue;
+			}
+			int first = positions[from];
+			if (positions[to - 1] - first == to - from - 1) {
+				handlers[op].calculate(numbers1, numbers2, first, first + to - from, results);
+			} else {
+				handlers[op].calculate(numbers1, numbers2, positions, from, to, results);
+			}
+			if (handlers[op].getCalculation() != Calculation.UNSUPPORTED) {
+				solved += to - from;
+			}
+		}
+		return solved;
+	}
+
+	private int opcodeAt(byte[] opcodes, int i) {
+		int op = opcodes[i];
+		return op >= 0 && op < handlers.length ? op : Calculation.UNSUPPORTED.ordinal();
+	}
+}
+
+// A chain that keeps the Objects solving the most requests at
+// its front. Hits are counted per calculation with LongAdder,
+// which stripes the count across cells so concurrent callers do
+// not contend. reorder() builds a fresh chain from the factories
+// in the new order and publishes it in one volatile write, so
+// callers already walking the old chain are never disturbed
+
+class AdaptiveChain {
+
+	private final Map<Calculation, Supplier<Chain>> factories = new EnumMap<>(Calculation.class);
+	private final LongAdder[] hits = new LongAdder[Calculation.values().length];
+
+	private final ResultSink unsupportedSink;
+
+	private volatile List<Calculation> ordering;
+	private volatile Chain firstInChain;
+
+	public AdaptiveChain(List<Supplier<Chain>> chainFactories) {
+		this(chainFactories, new ConsoleSink());
+	}
+
+	// Requests nobody in the chain solves are reported
+	// through unsupportedSink
+
+	public AdaptiveChain(List<Supplier<Chain>> chainFactories, ResultSink unsupportedSink) {
+		this.unsupportedSink = unsupportedSink;
+		List<Calculation> initialOrdering = new ArrayList<>();
+		for (Supplier<Chain> factory : chainFactories) {
+			Calculation calculation = factory.get().getCalculation();
+			if (factories.putIfAbsent(calculation, factory) == null) {
+				initialOrdering.add(calculation);
+			}
+		}
+		for (int i = 0; i < hits.length; i++) {
+			hits[i] = new LongAdder();
+		}
+		link(initialOrdering);
+	}
+
+	public void calculate(Numbers request) {
+		hits[request.getCalculation().ordinal()].increment();
+		firstInChain.calculate(request);
+	}
+
+	// Relinks the chain so the most requested calculations
+	// come first. Safe to call while others call calculate()
+
+	public synchronized void reorder() {
+		List<Calculation> newOrdering = new ArrayList<>(ordering);
+		long[] counts = new long[hits.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = hits[i].sum();
+		}
+		newOrdering.sort((c1, c2) -> Long.compare(counts[c2.ordinal()], counts[c1.ordinal()]));
+		if (!newOrdering.equals(ordering)) {
+			link(newOrdering);
+		}
+	}
+
+	// Calls reorder() every period on the given scheduler
+
+	public ScheduledFuture<?> reorderEvery(ScheduledExecutorService scheduler, long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(this::reorder, period, period, unit);
+	}
+
+	public Map<Calculation, Long> getHitCounts() {
+		Map<Calculation, Long> counts = new EnumMap<>(Calculation.class);
+		for (Calculation calculation : Calculation.values()) {
+			counts.put(calculation, hits[calculation.ordinal()].sum());
+		}
+		return counts;
+	}
+
+	public List<Calculation> getOrdering() {
+		return ordering;
+	}
+
+	private void link(List<Calculation> newOrdering) {
+		Chain first = new UnsupportedNumbers(unsupportedSink);
+		for (int i = newOrdering.size() - 1; i >= 0; i--) {
+			Chain link = factories.get(newOrdering.get(i)).get();
+			link.setNextChain(first);
+			first = link;
+		}
+		ordering = Collections.unmodifiableList(newOrdering);
+		firstInChain = first;
+	}
+}
+
+// Asynchronous form of a chain. Each Object in the chain runs
+// on its own executor and hands requests it can't solve to the
+// executor of the next Object. At most maxInFlight requests are
+// in the chain at once; calculateAsync() blocks the producer
+// until one of them completes instead of queueing without bound
+
+class AsyncChain {
+
+	private final Chain[] links;
+	private final Executor[] executors;
+	private final Semaphore inFlight;
+
+	public AsyncChain(Chain firstInChain, List<? extends Executor> stageExecutors, int maxInFlight) {
+		List<Chain> chain = new ArrayList<>();
+		for (Chain link = firstInChain; link != null; link = link.getNextChain()) {
+			chain.add(link);
+		}
+		if (chain.size() != stageExecutors.size()) {
+			throw new IllegalArgumentException(
+					"Expected " + chain.size() + " executors, one per Object in the chain, got " + stageExecutors.size());
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		links = chain.toArray(new Chain[0]);
+		executors = stageExecutors.toArray(new Executor[0]);
+		inFlight = new Semaphore(maxInFlight);
+	}
+
+	// Completes with the answer, or exceptionally with
+	// UnsupportedOperationException if nobody can solve it
+
+	public CompletableFuture<Long> calculateAsync(Numbers request) throws InterruptedException {
+		inFlight.acquire();
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		result.whenComplete((answer, failure) -> inFlight.release());
+		runStage(0, request, result);
+		return result;
+	}
+
+	private void runStage(int stage, Numbers request, CompletableFuture<Long> result) {
+		if (stage == links.length) {
+			result.completeExceptionally(new UnsupportedOperationException("Only works for add, sub, mult, and div"));
+			return;
+		}
+		try {
+			executors[stage].execute(() -> {
+				Chain link = links[stage];
+				if (link.getCalculation() != request.getCalculation()) {
+					runStage(stage + 1, request, result);
+					return;
+				}
+				try {
+					result.complete(link.calculate(request.getNumber1(), request.getNumber2()));
+				} catch (RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+	}
+}
+
+// Throughput of the synchronous chain against AsyncChain with
+// 1, 4 and all available cores. Answers go to a NoOpSink so
+// only the chain itself is timed
+//
+// java behavioral.AsyncChainBenchmark [requests]
+
+class AsyncChainBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		for (int threads : new int[] { 1, 4, cores }) {
+			double sync = measureSync(threads, requests);
+			double async = measureAsync(threads, requests);
+			System.out.printf("%3d threads: sync %,12.0f req/s  async %,12.0f req/s%n", threads, sync, async);
+		}
+	}
+
+	private static Chain newChain() {
+		ResultSink sink = new NoOpSink();
+		Chain first = new AddNumbers(sink);
+		Chain second = new SubtractNumbers(sink);
+		Chain third = new MultNumbers(sink);
+		Chain fourth = new DivideNumbers(sink);
+		first.setNextChain(second);
+		second.setNextChain(third);
+		third.setNextChain(fourth);
+		return first;
+	}
+
+	private static Numbers request(int i) {
+		String[] calculations = { "add", "sub", "mult", "div" };
+		return new Numbers(i, 1 + (i & 7), calculations[i & 3]);
+	}
+
+	private static double measureSync(int threads, int requests) throws InterruptedException {
+		Chain chain = newChain();
+		ExecutorService producers = Executors.newFixedThreadPool(threads);
+		CountDownLatch done = new CountDownLatch(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			int offset = t;
+			producers.execute(() -> {
+				for (int i = offset; i < requests; i += threads) {
+					chain.calculate(request(i));
+				}
+				done.countDown();
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		producers.shutdown();
+		return requests * 1e9 / elapsed;
+	}
+
+	private static double measureAsync(int threads, int requests) throws Exception {
+		List<ExecutorService> stages = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			stages.add(Executors.newFixedThreadPool(threads));
+		}
+		AsyncChain chain = new AsyncChain(newChain(), stages, 1024 * threads);
+		CountDownLatch done = new CountDownLatch(requests);
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			chain.calculateAsync(request(i)).whenComplete((answer, failure) -> done.countDown());
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		for (ExecutorService stage : stages) {
+			stage.shutdown();
+		}
+		return requests * 1e9 / elapsed;
+	}
 }
 
 public class ChainOfResponsibilityDemo {
@@ -182,6 +959,74 @@ public class ChainOfResponsibilityDemo {
 		chainCalc1.calculate(request2);
 		chainCalc1.calculate(request3);
 
+		// The same chain compiled into a dispatch table
+
+		CompiledChain compiledCalc = new CompiledChain(chainCalc1);
+
+		compiledCalc.calculate(request1);
+		compiledCalc.calculate(request2);
+		compiledCalc.calculate(request3);
+
+		// Many requests at once, passed as columns
+
+		int[] numbers1 = { 4, 4, 4, 9, 4 };
+		int[] numbers2 = { 2, 2, 2, 2, 2 };
+		byte[] opcodes = { (byte) Calculation.MULT.ordinal(), (byte) Calculation.ADD.ordinal(),
+				(byte) Calculation.MULT.ordinal(), (byte) Calculation.DIV.ordinal(),
+				(byte) Calculation.SUB.ordinal() };
+		long[] results = new long[opcodes.length];
+
+		int solved = compiledCalc.calculate(numbers1, numbers2, opcodes, results);
+		System.out.println(solved + " solved: " + Arrays.toString(results));
+
+		// A chain that moves the busiest Objects to the front
+
+		AdaptiveChain adaptiveCalc = new AdaptiveChain(
+				Arrays.asList(AddNumbers::new, SubtractNumbers::new, MultNumbers::new, DivideNumbers::new));
+
+		adaptiveCalc.calculate(request1);
+		adaptiveCalc.calculate(request2);
+		adaptiveCalc.calculate(request3);
+
+		adaptiveCalc.reorder();
+		System.out.println("Hits: " + adaptiveCalc.getHitCounts());
+		System.out.println("Ordering: " + adaptiveCalc.getOrdering());
+
+		// The chain again, each Object on its own thread
+
+		List<ExecutorService> stages = Arrays.asList(Executors.newSingleThreadExecutor(),
+				Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor(),
+				Executors.newSingleThreadExecutor());
+		AsyncChain asyncCalc = new AsyncChain(chainCalc1, stages, 16);
+
+		try {
+			System.out.println("4 * 2 = " + asyncCalc.calculateAsync(request1).join());
+			asyncCalc.calculateAsync(request3).exceptionally(failure -> {
+				System.out.println(failure.getMessage());
+				return null;
+			}).join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (ExecutorService stage : stages) {
+				stage.shutdown();
+			}
+		}
+
+		// Answers collected in a buffer and written in batches
+
+		BufferedSink bufferedSink = new BufferedSink(System.out, 8192);
+		Chain bufferedCalc = new MultNumbers(bufferedSink);
+		bufferedCalc.setNextChain(new UnsupportedNumbers(bufferedSink));
+
+		bufferedCalc.calculate(request1);
+		bufferedCalc.calculate(request3);
+		try {
+			bufferedSink.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
 	}
 
 }
@@ -1,5 +1,37 @@
 package behavioral;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Command is a behavioral design pattern that turns a request into a
  * stand-alone object that contains all information about the request. This
@@ -12,21 +44,66 @@ package behavioral;
 
 interface Command {
 	void execute();
+
+	// Reverts what execute() did
+	void undo();
+
+	// The receiver this command acts on
+	Object getReceiver();
+}
+
+// Command whose execute() sets the whole state of its receiver,
+// whatever the state was before, so of several in a row for the
+// same receiver only the last one has any effect
+interface StateCommand extends Command {
+}
+
+// Command that can be recorded in a CommandJournal
+interface JournaledCommand extends Command {
+	byte getOpcode();
+
+	int getReceiverId();
 }
 
 // Receiver on which commands are invoked by Invoker
 class Light {
+	private final int id;
+	private volatile boolean on;
+
+	public Light() {
+		this(0);
+	}
+
+	public Light(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public boolean isOn() {
+		return on;
+	}
+
 	public void turnOn() {
+		on = true;
 		System.out.println("Light turned ON");
 	}
 
 	public void turnOff() {
+		on = false;
 		System.out.println("Light turned OFF");
 	}
+
+	// Sets the state quietly, used when replaying a journal
+	public void restore(boolean on) {
+		this.on = on;
+	}
 }
 
 // Concrete command
-class LightOnCommand implements Command {
+class LightOnCommand implements JournaledCommand, StateCommand {
 
 	private Light light;
 
@@ -34,15 +111,35 @@ class LightOnCommand implements Command {
 		this.light = light;
 	}
 
+	@Override
+	public Object getReceiver() {
+		return light;
+	}
+
 	@Override
 	public void execute() {
 		light.turnOn();
 	}
 
+	@Override
+	public void undo() {
+		light.turnOff();
+	}
+
+	@Override
+	public byte getOpcode() {
+		return CommandJournal.LIGHT_ON;
+	}
+
+	@Override
+	public int getReceiverId() {
+		return light.getId();
+	}
+
 }
 
 // Another concrete command
-class LightOffCommand implements Command {
+class LightOffCommand implements JournaledCommand, StateCommand {
 
 	private Light light;
 
@@ -50,37 +147,789 @@ class LightOffCommand implements Command {
 		this.light = light;
 	}
 
+	@Override
+	public Object getReceiver() {
+		return light;
+	}
+
 	@Override
 	public void execute() {
 		light.turnOff();
 	}
 
+	@Override
+	public void undo() {
+		light.turnOn();
+	}
+
+	@Override
+	public byte getOpcode() {
+		return CommandJournal.LIGHT_OFF;
+	}
+
+	@Override
+	public int getReceiverId() {
+		return light.getId();
+	}
+
+}
+
+// Composite command. Children are grouped by receiver when the
+// macro is built; groups touch disjoint receivers and run in
+// parallel on a fork-join pool, while the commands inside a
+// group keep their order. A child with no known receiver, such
+// as a nested macro, may touch any receiver, so it is a barrier:
+// everything before it finishes first, it runs alone, and only
+// then do the groups after it start. Undo runs the same stages
+// in reverse, every group backwards
+class MacroCommand implements Command {
+
+	// Runs of children between barriers, each split into groups
+	private final List<List<List<Command>>> stages = new ArrayList<>();
+	private final ForkJoinPool pool;
+
+	public MacroCommand(List<? extends Command> commands) {
+		this(commands, ForkJoinPool.commonPool());
+	}
+
+	public MacroCommand(List<? extends Command> commands, ForkJoinPool pool) {
+		this.pool = pool;
+		Map<Object, List<Command>> byReceiver = new IdentityHashMap<>();
+		List<List<Command>> stage = null;
+		for (Command command : commands) {
+			Object receiver = command.getReceiver();
+			if (receiver == null) {
+				stages.add(Collections.singletonList(Collections.singletonList(command)));
+				stage = null;
+				continue;
+			}
+			if (stage == null) {
+				stage = new ArrayList<>();
+				stages.add(stage);
+				byReceiver.clear();
+			}
+			List<Command> group = byReceiver.get(receiver);
+			if (group == null) {
+				group = new ArrayList<>();
+				byReceiver.put(receiver, group);
+				stage.add(group);
+			}
+			group.add(command);
+		}
+	}
+
+	@Override
+	public void execute() {
+		for (List<List<Command>> stage : stages) {
+			run(stage, false);
+		}
+	}
+
+	@Override
+	public void undo() {
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			run(stages.get(i), true);
+		}
+	}
+
+	// Acts on many receivers
+	@Override
+	public Object getReceiver() {
+		return null;
+	}
+
+	private void run(List<List<Command>> stage, boolean undo) {
+		if (stage.size() == 1) {
+			new GroupAction(stage, 0, 1, undo).compute();
+		} else {
+			pool.invoke(new GroupAction(stage, 0, stage.size(), undo));
+		}
+	}
+
+	// Splits the groups in halves until a single group is left
+	private static class GroupAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<List<Command>> groups;
+		private final int from;
+		private final int to;
+		private final boolean undo;
+
+		private GroupAction(List<List<Command>> groups, int from, int to, boolean undo) {
+			this.groups = groups;
+			this.from = from;
+			this.to = to;
+			this.undo = undo;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new GroupAction(groups, from, middle, undo), new GroupAction(groups, middle, to, undo));
+				return;
+			}
+			if (to == from) {
+				return;
+			}
+			List<Command> group = groups.get(from);
+			if (undo) {
+				for (int i = group.size() - 1; i >= 0; i--) {
+					group.get(i).undo();
+				}
+			} else {
+				for (Command command : group) {
+					command.execute();
+				}
+			}
+		}
+	}
 }
 
-// Invoker invokes the commands on a receiver
+// Checks that a MacroCommand keeps the order of commands on the
+// same receiver, also when some of them sit in a nested macro,
+// by making the first command slow. Exits with 1 if not
+//
+// java behavioral.MacroCommandOrderCheck
+class MacroCommandOrderCheck {
+
+	public static void main(String[] args) {
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Object light = new Object();
+		Object other = new Object();
+		MacroCommand macro = new MacroCommand(Arrays.asList(new RecordingCommand(log, light, "on", 50),
+				new RecordingCommand(log, other, "other", 0),
+				new MacroCommand(Arrays.asList(new RecordingCommand(log, light, "off", 0))),
+				new RecordingCommand(log, light, "dim", 0)));
+
+		macro.execute();
+		boolean ok = log.indexOf("on") < log.indexOf("off") && log.indexOf("off") < log.indexOf("dim");
+		System.out.println("execute: " + log);
+
+		log.clear();
+		macro.undo();
+		ok &= log.indexOf("undo dim") < log.indexOf("undo off") && log.indexOf("undo off") < log.indexOf("undo on");
+		System.out.println("undo: " + log);
+
+		System.out.println(ok ? "OK" : "FAILED");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static class RecordingCommand implements Command {
+		private final List<String> log;
+		private final Object receiver;
+		private final String name;
+		private final long delayMillis;
+
+		private RecordingCommand(List<String> log, Object receiver, String name, long delayMillis) {
+			this.log = log;
+			this.receiver = receiver;
+			this.name = name;
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public void execute() {
+			pause();
+			log.add(name);
+		}
+
+		@Override
+		public void undo() {
+			log.add("undo " + name);
+		}
+
+		@Override
+		public Object getReceiver() {
+			return receiver;
+		}
+
+		private void pause() {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
+
+// Invoker invokes the commands on a receiver, either right
+// away or by handing them to a CommandQueue
 class RemoteController {
 	private Command on;
 	private Command off;
+	private CommandQueue queue;
 
 	public RemoteController(Command on, Command off) {
 		this.on = on;
 		this.off = off;
 	}
 
+	public RemoteController(Command on, Command off, CommandQueue queue) {
+		this(on, off);
+		this.queue = queue;
+	}
+
 	public void clickOn() {
-		on.execute();
+		invoke(on);
 	}
 
 	public void clickOff() {
-		off.execute();
+		invoke(off);
+	}
+
+	private void invoke(Command command) {
+		if (queue == null) {
+			command.execute();
+		} else {
+			queue.submit(command);
+		}
+	}
+}
+
+// Queues commands and executes them in batches. Within a batch,
+// a run of StateCommands for the same receiver that follow each
+// other is collapsed into the last one, since the earlier ones
+// would be overwritten anyway. Every other command is executed.
+// Batches must be drained by a single thread, which keeps the
+// commands in submission order
+class CommandQueue implements Runnable {
+	private final BlockingQueue<Command> pending = new LinkedBlockingQueue<>();
+	private final int maxBatchSize;
+
+	private final List<Command> batch = new ArrayList<>();
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder drained = new LongAdder();
+	private final LongAdder executed = new LongAdder();
+
+	public CommandQueue(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void submit(Command command) {
+		pending.add(command);
+	}
+
+	// Executes one batch of whatever is pending without waiting.
+	// Returns the number of commands taken from the queue
+	public int drainBatch() {
+		pending.drainTo(batch, maxBatchSize);
+		return executeBatch();
+	}
+
+	// Drains batches until the thread is interrupted
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				batch.add(pending.take());
+				pending.drainTo(batch, maxBatchSize - 1);
+				executeBatch();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int executeBatch() {
+		int size = batch.size();
+		if (size == 0) {
+			return 0;
+		}
+
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			Command command = batch.get(i);
+			if (i + 1 < size && overwrites(batch.get(i + 1), command)) {
+				continue;
+			}
+			command.execute();
+			count++;
+		}
+
+		batches.increment();
+		drained.add(size);
+		executed.add(count);
+		batch.clear();
+		return size;
+	}
+
+	// Whether running next right after command leaves the same
+	// state as running next alone
+	private static boolean overwrites(Command next, Command command) {
+		return next instanceof StateCommand && command instanceof StateCommand && command.getReceiver() != null
+				&& next.getReceiver() == command.getReceiver();
+	}
+
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	public double getAverageBatchSize() {
+		long count = batches.sum();
+		return count == 0 ? 0 : (double) drained.sum() / count;
+	}
+
+	// Share of drained commands that were dropped by coalescing
+	public double getCoalescingRatio() {
+		long total = drained.sum();
+		return total == 0 ? 0 : (double) (total - executed.sum()) / total;
+	}
+}
+
+// Append-only binary journal of executed and undone commands,
+// written through a memory-mapped file. Each record is 8 bytes:
+// opcode, flags, two bytes of padding and the receiver id. An
+// opcode of 0 marks the end of the journal, so the unwritten
+// tail of the mapping never needs to be told apart from data.
+//
+// Every snapshotInterval records the state of all receivers is
+// written to a snapshot file together with the journal offset
+// it covers, so replay() only has to read the records after it
+class CommandJournal implements Closeable {
+	public static final byte LIGHT_ON = 1;
+	public static final byte LIGHT_OFF = 2;
+
+	private static final byte FLAG_UNDO = 1;
+	private static final int RECORD_SIZE = 8;
+	private static final int CHUNK_SIZE = RECORD_SIZE << 20;
+
+	private final Path journalFile;
+	private final Path snapshotFile;
+	private final Light[] lights;
+	private final int snapshotInterval;
+	private final FileChannel channel;
+
+	private MappedByteBuffer chunk;
+	private long chunkStart;
+	private long position;
+	private long recordsSinceSnapshot;
+
+	// Lights are looked up by id, which must be their index
+	public CommandJournal(Path directory, Light[] lights, int snapshotInterval) throws IOException {
+		this.journalFile = directory.resolve("commands.journal");
+		this.snapshotFile = directory.resolve("commands.snapshot");
+		this.lights = lights;
+		this.snapshotInterval = snapshotInterval;
+		this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.position = findEnd();
+		mapChunk(position - position % CHUNK_SIZE);
+	}
+
+	public synchronized void append(JournaledCommand command, boolean undo) {
+		if (position == chunkStart + CHUNK_SIZE) {
+			mapChunk(position);
+		}
+		// The opcode goes in last: a record with opcode 0 ends the
+		// journal, so a crash part way through leaves it unwritten
+		// rather than half written
+		int offset = (int) (position - chunkStart);
+		chunk.putInt(offset + 4, command.getReceiverId());
+		chunk.put(offset + 1, undo ? FLAG_UNDO : 0);
+		chunk.put(offset, command.getOpcode());
+		position += RECORD_SIZE;
+
+		if (snapshotInterval > 0 && ++recordsSinceSnapshot >= snapshotInterval) {
+			try {
+				snapshot();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// Rebuilds the state of every light from the last snapshot
+	// and the records written after it. Returns the number of
+	// records replayed
+	public synchronized long replay() throws IOException {
+		long from = restoreSnapshot();
+		long replayed = 0;
+		for (long start = from; start < position; start += CHUNK_SIZE) {
+			long length = Math.min(CHUNK_SIZE, position - start);
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			for (int offset = 0; offset < length; offset += RECORD_SIZE) {
+				boolean on = records.get(offset) == LIGHT_ON;
+				if ((records.get(offset + 1) & FLAG_UNDO) != 0) {
+					on = !on;
+				}
+				lights[records.getInt(offset + 4)].restore(on);
+				replayed++;
+			}
+		}
+		return replayed;
+	}
+
+	// Writes the state of every light and the journal offset
+	// it covers. The file is replaced atomically
+	public synchronized void snapshot() throws IOException {
+		ByteBuffer snapshot = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + lights.length);
+		snapshot.putLong(position).putInt(lights.length);
+		for (Light light : lights) {
+			snapshot.put((byte) (light.isOn() ? 1 : 0));
+		}
+		snapshot.flip();
+
+		Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			chunk.force();
+			while (snapshot.hasRemaining()) {
+				out.write(snapshot);
+			}
+			out.force(true);
+		}
+		Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		recordsSinceSnapshot = 0;
+	}
+
+	public synchronized long getRecordCount() {
+		return position / RECORD_SIZE;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		chunk.force();
+		chunk = null;
+		channel.truncate(position);
+		channel.close();
+	}
+
+	private long restoreSnapshot() throws IOException {
+		if (!Files.exists(snapshotFile)) {
+			return 0;
+		}
+		ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+		long covered = snapshot.getLong();
+		int count = Math.min(snapshot.getInt(), lights.length);
+		for (int i = 0; i < count; i++) {
+			lights[i].restore(snapshot.get() != 0);
+		}
+		return Math.min(covered, position);
+	}
+
+	// The journal ends at the first record with opcode 0, or at
+	// the end of the file if it was closed cleanly
+	private long findEnd() throws IOException {
+		long size = channel.size() - channel.size() % RECORD_SIZE;
+		ByteBuffer opcode = ByteBuffer.allocate(1);
+		long low = 0;
+		long high = size / RECORD_SIZE;
+		// Records are written front to back, so the written
+		// ones form a prefix and the end can be bisected
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			opcode.clear();
+			channel.read(opcode, middle * RECORD_SIZE);
+			if (opcode.get(0) != 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low * RECORD_SIZE;
+	}
+
+	private void mapChunk(long start) {
+		try {
+			if (chunk != null) {
+				chunk.force();
+			}
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE);
+			chunkStart = start;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
+
+// Invoker keeping undo and redo stacks, recording every step
+// in a CommandJournal
+class CommandHistory {
+	private final CommandJournal journal;
+	private final Deque<JournaledCommand> undoStack = new ArrayDeque<>();
+	private final Deque<JournaledCommand> redoStack = new ArrayDeque<>();
+
+	public CommandHistory(CommandJournal journal) {
+		this.journal = journal;
+	}
+
+	public void execute(JournaledCommand command) {
+		command.execute();
+		journal.append(command, false);
+		undoStack.push(command);
+		redoStack.clear();
+	}
+
+	public boolean undo() {
+		JournaledCommand command = undoStack.poll();
+		if (command == null) {
+			return false;
+		}
+		command.undo();
+		journal.append(command, true);
+		redoStack.push(command);
+		return true;
+	}
+
+	public boolean redo() {
+		JournaledCommand command = redoStack.poll();
+		if (command == null) {
+			return false;
+		}
+		command.execute();
+		journal.append(command, false);
+		undoStack.push(command);
+		return true;
+	}
+}
+
+// Hosts one RemoteController session per device. Clicks are
+// posted to the session's mailbox and the session is scheduled
+// on the shared executor only while its mailbox has clicks, so
+// an idle session costs a few small objects and no thread.
+// Any Executor works; on a JDK with virtual threads a
+// virtual-thread-per-task executor can be passed in as is
+class RemoteRuntime {
+	private static final int CLICKS_PER_RUN = 32;
+
+	private final Executor executor;
+	private final LatencyHistogram latency;
+
+	public RemoteRuntime(Executor executor, LatencyHistogram latency) {
+		this.executor = executor;
+		this.latency = latency;
+	}
+
+	public RemoteSession open(RemoteController controller) {
+		return new RemoteSession(controller);
+	}
+
+	class RemoteSession implements Runnable {
+		private final RemoteController controller;
+		private final ConcurrentLinkedQueue<Click> mailbox = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		private RemoteSession(RemoteController controller) {
+			this.controller = controller;
+		}
+
+		public void clickOn() {
+			post(new Click(true, System.nanoTime()));
+		}
+
+		public void clickOff() {
+			post(new Click(false, System.nanoTime()));
+		}
+
+		private void post(Click click) {
+			mailbox.add(click);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					throw e;
+				}
+			}
+		}
+
+		// Handles a bounded number of clicks per run so one busy
+		// session can't starve the others on the executor. A command
+		// that throws ends the run, but the clicks after it are still
+		// handled by the next one
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < CLICKS_PER_RUN; i++) {
+					Click click = mailbox.poll();
+					if (click == null) {
+						break;
+					}
+					if (click.on) {
+						controller.clickOn();
+					} else {
+						controller.clickOff();
+					}
+					if (latency != null) {
+						latency.record(System.nanoTime() - click.sentAt);
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!mailbox.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+	}
+
+	private static class Click {
+		private final boolean on;
+		private final long sentAt;
+
+		private Click(boolean on, long sentAt) {
+			this.on = on;
+			this.sentAt = sentAt;
+		}
+	}
+}
+
+// Histogram of latencies with one bucket per microsecond up to
+// one second; anything slower lands in the last bucket
+class LatencyHistogram {
+	private static final int BUCKETS = 1_000_001;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+
+	public void record(long nanos) {
+		counts.incrementAndGet((int) Math.min(BUCKETS - 1, Math.max(0, nanos / 1000)));
+		total.increment();
+	}
+
+	// Latency in microseconds below which the given fraction
+	// of the recorded values fall
+	public long percentile(double fraction) {
+		long target = (long) Math.ceil(total.sum() * fraction);
+		long seen = 0;
+		for (int micros = 0; micros < BUCKETS; micros++) {
+			seen += counts.get(micros);
+			if (seen >= target && seen > 0) {
+				return micros;
+			}
+		}
+		return BUCKETS - 1;
+	}
+}
+
+// Load test of RemoteRuntime: every remote clicks on and then
+// off against a shared pool of lights. The commands set the
+// light quietly so the console doesn't dominate the latency
+//
+// java behavioral.RemoteRuntimeLoadTest [remotes] [lights]
+class RemoteRuntimeLoadTest {
+
+	public static void main(String[] args) throws InterruptedException {
+		int remotes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int lightCount = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+		Light[] lights = new Light[lightCount];
+		for (int i = 0; i < lightCount; i++) {
+			lights[i] = new Light(i);
+		}
+
+		ExecutorService executor = Executors.newWorkStealingPool();
+		LatencyHistogram latency = new LatencyHistogram();
+		RemoteRuntime runtime = new RemoteRuntime(executor, latency);
+		CountDownLatch done = new CountDownLatch(2 * remotes);
+
+		List<RemoteRuntime.RemoteSession> sessions = new ArrayList<>(remotes);
+		for (int i = 0; i < remotes; i++) {
+			Light light = lights[i % lightCount];
+			sessions.add(runtime.open(new RemoteController(new QuietSwitch(light, true, done),
+					new QuietSwitch(light, false, done))));
+		}
+
+		long start = System.nanoTime();
+		for (RemoteRuntime.RemoteSession session : sessions) {
+			session.clickOn();
+			session.clickOff();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		System.out.printf("%,d remotes, %,d clicks in %,d ms (%,.0f clicks/s)%n", remotes, 2L * remotes,
+				elapsed / 1_000_000, 2L * remotes * 1e9 / elapsed);
+		System.out.printf("latency p50 %,d us, p99 %,d us, p999 %,d us%n", latency.percentile(0.5),
+				latency.percentile(0.99), latency.percentile(0.999));
+	}
+
+	private static class QuietSwitch implements Command {
+		private final Light light;
+		private final boolean on;
+		private final CountDownLatch done;
+
+		private QuietSwitch(Light light, boolean on, CountDownLatch done) {
+			this.light = light;
+			this.on = on;
+			this.done = done;
+		}
+
+		@Override
+		public void execute() {
+			light.restore(on);
+			done.countDown();
+		}
+
+		@Override
+		public void undo() {
+			light.restore(!on);
+		}
+
+		@Override
+		public Object getReceiver() {
+			return light;
+		}
 	}
 }
 
 public class CommandDemo {
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		Light light = new Light();
 		RemoteController remoteController = new RemoteController(new LightOnCommand(light), new LightOffCommand(light));
 		remoteController.clickOn();
 		remoteController.clickOff();
+
+		// Clicks queued and executed in a batch, only the
+		// last click survives
+		CommandQueue queue = new CommandQueue(64);
+		RemoteController queuedController = new RemoteController(new LightOnCommand(light),
+				new LightOffCommand(light), queue);
+		queuedController.clickOn();
+		queuedController.clickOff();
+		queuedController.clickOn();
+		queue.drainBatch();
+		System.out.println("Batches: " + queue.getBatchCount() + ", average size: " + queue.getAverageBatchSize()
+				+ ", coalesced: " + queue.getCoalescingRatio());
+
+		// Undoable commands recorded in a journal, then replayed
+		// into fresh lights as after a restart
+		Path directory = Files.createTempDirectory("commands");
+		Light[] lights = { new Light(0), new Light(1) };
+		try (CommandJournal journal = new CommandJournal(directory, lights, 1000)) {
+			CommandHistory history = new CommandHistory(journal);
+			history.execute(new LightOnCommand(lights[0]));
+			history.execute(new LightOnCommand(lights[1]));
+			history.undo();
+			history.redo();
+			history.undo();
+		}
+
+		// Lights switched together, each light on its own
+		// fork-join task
+		MacroCommand allOn = new MacroCommand(
+				Arrays.asList(new LightOnCommand(lights[0]), new LightOnCommand(lights[1])));
+		allOn.execute();
+		allOn.undo();
+
+		Light[] restored = { new Light(0), new Light(1) };
+		try (CommandJournal journal = new CommandJournal(directory, restored, 1000)) {
+			long replayed = journal.replay();
+			System.out.println("Replayed " + replayed + " records: light 0 " + (restored[0].isOn() ? "ON" : "OFF")
+					+ ", light 1 " + (restored[1].isOn() ? "ON" : "OFF"));
+		}
 	}
 }
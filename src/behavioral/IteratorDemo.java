@@ -1,5 +1,25 @@
 package behavioral;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Iterator is a behavioral design pattern that lets you traverse elements of a
  * collection without exposing its underlying representation (list, stack, tree,
@@ -35,6 +55,17 @@ interface Iterator<E> {
 	E currentItem();
 
 	void reset(); // optional for example
+
+	// Copies up to max of the next elements into dst and returns
+	// how many were copied, 0 once the iteration is over
+	default int nextBatch(E[] dst, int max) {
+		int limit = Math.min(max, dst.length);
+		int count = 0;
+		while (count < limit && hasNext()) {
+			dst[count++] = next();
+		}
+		return count;
+	}
 }
 
 // Concrete iterator for Topic
@@ -67,6 +98,17 @@ class TopicIterator implements Iterator<Topic> {
 	public void reset() {
 		position = 0;
 	}
+
+	@Override
+	public int nextBatch(Topic[] dst, int max) {
+		int count = Math.min(Math.min(max, dst.length), topics.length - position);
+		if (count <= 0) {
+			return 0;
+		}
+		System.arraycopy(topics, position, dst, 0, count);
+		position += count;
+		return count;
+	}
 }
 
 // Iterable
@@ -87,10 +129,528 @@ class TopicList implements List<Topic> {
 	public Iterator<Topic> getIterator() {
 		return new TopicIterator(topics);
 	}
+
+	// Splits the backing array in halves, so parallel streams
+	// know the exact size of every part
+	public Spliterator<Topic> spliterator() {
+		return Spliterators.spliterator(topics, Spliterator.ORDERED | Spliterator.IMMUTABLE);
+	}
+
+	public Stream<Topic> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	public Stream<Topic> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
 }
 
-public class IteratorDemo {
+// Walks the same topics with TopicIterator one at a time and
+// in batches, a sequential stream and a parallel stream,
+// summing the name lengths each time
+//
+// java behavioral.TopicIterationBenchmark [topics]
+class TopicIterationBenchmark {
+
 	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		Topic[] topics = new Topic[count];
+		for (int i = 0; i < count; i++) {
+			topics[i] = new Topic("topic " + i);
+		}
+		TopicList list = new TopicList(topics);
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			long iterated = 0;
+			Iterator<Topic> iterator = list.getIterator();
+			while (iterator.hasNext()) {
+				iterated += iterator.next().getName().length();
+			}
+			long iteratorTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long batched = 0;
+			Topic[] batch = new Topic[256];
+			Iterator<Topic> batchIterator = list.getIterator();
+			for (int n; (n = batchIterator.nextBatch(batch, batch.length)) > 0;) {
+				for (int i = 0; i < n; i++) {
+					batched += batch[i].getName().length();
+				}
+			}
+			long batchedTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long sequential = list.stream().mapToLong(topic -> topic.getName().length()).sum();
+			long sequentialTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long parallel = list.parallelStream().mapToLong(topic -> topic.getName().length()).sum();
+			long parallelTime = System.nanoTime() - start;
+
+			if (iterated != batched || iterated != sequential || sequential != parallel) {
+				throw new IllegalStateException("Results differ");
+			}
+			System.out.printf("round %d: iterator %,d ms, batched %,d ms, stream %,d ms, parallel stream %,d ms%n",
+					round, iteratorTime / 1_000_000, batchedTime / 1_000_000, sequentialTime / 1_000_000,
+					parallelTime / 1_000_000);
+		}
+	}
+}
+
+// Concrete Iterable over a file of length-prefixed UTF-8 topic
+// names: a 4-byte big-endian length followed by the bytes. A
+// companion ".idx" file holds the 8-byte offset of every name.
+// Both files are memory-mapped rather than read, so opening
+// costs the same for any file size. The index is rebuilt by a
+// single scan only if it is missing or older than the names.
+//
+// Files are mapped in 1 GB segments. Name segments overlap by
+// the largest possible record, so every name can be read from
+// the segment its record starts in
+class MappedTopicList implements List<Topic> {
+
+	static final int MAX_NAME_LENGTH = 1 << 16;
+
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final int SEGMENT_OVERLAP = Integer.BYTES + MAX_NAME_LENGTH;
+
+	private final MappedByteBuffer[] names;
+	private final MappedByteBuffer[] offsets;
+	private final long size;
+
+	public MappedTopicList(Path namesFile) throws IOException {
+		Path indexFile = indexFileFor(namesFile);
+		if (!Files.exists(indexFile)
+				|| Files.getLastModifiedTime(indexFile).compareTo(Files.getLastModifiedTime(namesFile)) < 0) {
+			buildIndex(namesFile, indexFile);
+		}
+		names = map(namesFile, SEGMENT_OVERLAP);
+		offsets = map(indexFile, 0);
+		size = Files.size(indexFile) / Long.BYTES;
+	}
+
+	// Writes topic names and their index in the format read above
+	public static void write(Path namesFile, Iterator<Topic> topics) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(namesFile), 1 << 16));
+				DataOutputStream index = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(indexFileFor(namesFile)), 1 << 16))) {
+			long offset = 0;
+			while (topics.hasNext()) {
+				byte[] name = topics.next().getName().getBytes(StandardCharsets.UTF_8);
+				if (name.length > MAX_NAME_LENGTH) {
+					throw new IllegalArgumentException("Topic name longer than " + MAX_NAME_LENGTH + " bytes");
+				}
+				index.writeLong(offset);
+				out.writeInt(name.length);
+				out.write(name);
+				offset += Integer.BYTES + name.length;
+			}
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<Topic> getIterator() {
+		return new MappedTopicIterator(this);
+	}
+
+	long offsetOf(long i) {
+		long position = i * Long.BYTES;
+		return offsets[(int) (position / SEGMENT_SIZE)].getLong((int) (position % SEGMENT_SIZE));
+	}
+
+	int nameLengthAt(long offset) {
+		return names[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+	}
+
+	String nameAt(long offset) {
+		MappedByteBuffer segment = names[(int) (offset / SEGMENT_SIZE)];
+		int start = (int) (offset % SEGMENT_SIZE);
+		byte[] bytes = new byte[segment.getInt(start)];
+		segment.get(start + Integer.BYTES, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Path indexFileFor(Path namesFile) {
+		return namesFile.resolveSibling(namesFile.getFileName() + ".idx");
+	}
+
+	private static MappedByteBuffer[] map(Path file, int overlap) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				long end = Math.min(length, start + SEGMENT_SIZE + overlap);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			}
+			return segments;
+		}
+	}
+
+	private static void buildIndex(Path namesFile, Path indexFile) throws IOException {
+		MappedByteBuffer[] segments = map(namesFile, SEGMENT_OVERLAP);
+		long length = Files.size(namesFile);
+		try (DataOutputStream index = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(indexFile), 1 << 16))) {
+			long offset = 0;
+			while (offset + Integer.BYTES <= length) {
+				index.writeLong(offset);
+				offset += Integer.BYTES
+						+ segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+			}
+		}
+	}
+}
+
+// Topic whose name lives in a MappedTopicList. The iterator moves
+// one instance along the file instead of creating a Topic per
+// name, and the name is only decoded when asked for. A view is
+// only valid until the next call to next() on its iterator
+class MappedTopic extends Topic {
+
+	private final MappedTopicList list;
+	private long offset = -1;
+	private String name;
+
+	MappedTopic(MappedTopicList list) {
+		super(null);
+		this.list = list;
+	}
+
+	void moveTo(long offset) {
+		this.offset = offset;
+		this.name = null;
+	}
+
+	// Length of the name in UTF-8 bytes, read without decoding
+	public int getNameLength() {
+		return list.nameLengthAt(offset);
+	}
+
+	@Override
+	public String getName() {
+		if (name == null) {
+			name = list.nameAt(offset);
+		}
+		return name;
+	}
+
+	@Override
+	public void setName(String name) {
+		throw new UnsupportedOperationException("Mapped topics are read-only");
+	}
+}
+
+// Concrete iterator for MappedTopicList
+class MappedTopicIterator implements Iterator<Topic> {
+
+	private final MappedTopicList list;
+	private final MappedTopic view;
+	private long position;
+
+	MappedTopicIterator(MappedTopicList list) {
+		this.list = list;
+		this.view = new MappedTopic(list);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < list.size();
+	}
+
+	@Override
+	public Topic next() {
+		view.moveTo(list.offsetOf(position++));
+		return view;
+	}
+
+	@Override
+	public Topic currentItem() {
+		view.moveTo(list.offsetOf(position));
+		return view;
+	}
+
+	@Override
+	public void reset() {
+		position = 0;
+	}
+
+	// A shared view can't be stored in an array, so batches are
+	// filled with decoded, independent Topic copies
+	@Override
+	public int nextBatch(Topic[] dst, int max) {
+		int count = (int) Math.min(Math.min(max, dst.length), list.size() - position);
+		for (int i = 0; i < count; i++) {
+			dst[i] = new Topic(list.nameAt(list.offsetOf(position++)));
+		}
+		return Math.max(count, 0);
+	}
+}
+
+// Where a PrefetchingTopicIterator reads its pages from
+interface TopicPageSource {
+	// Fills page with the topics starting at firstTopic and
+	// returns how many were read, 0 past the last topic
+	int readPage(long firstTopic, Topic[] page) throws IOException;
+}
+
+// Page source over a MappedTopicList that waits the given time
+// before every page, standing in for slow storage
+class MappedTopicPageSource implements TopicPageSource {
+
+	private final MappedTopicList list;
+	private final long latencyNanos;
+
+	public MappedTopicPageSource(MappedTopicList list, long latency, TimeUnit unit) {
+		this.list = list;
+		this.latencyNanos = unit.toNanos(latency);
+	}
+
+	@Override
+	public int readPage(long firstTopic, Topic[] page) throws IOException {
+		try {
+			TimeUnit.NANOSECONDS.sleep(latencyNanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		int count = (int) Math.max(0, Math.min(page.length, list.size() - firstTopic));
+		for (int i = 0; i < count; i++) {
+			page[i] = new Topic(list.nameAt(list.offsetOf(firstTopic + i)));
+		}
+		return count;
+	}
+}
+
+// Concrete iterator reading fixed-size pages from a page source.
+// A background thread reads up to prefetchDepth pages ahead
+// while the caller works through the current one. Page arrays
+// are recycled, so at most prefetchDepth + 1 pages exist at any
+// time. A prefetchDepth of 0 reads every page on the caller's
+// thread. close() stops the background thread and ends the
+// iteration. Once reading a page has failed, every later call
+// throws the same failure
+class PrefetchingTopicIterator implements Iterator<Topic>, AutoCloseable {
+
+	private final TopicPageSource source;
+	private final int pageSize;
+	private final int prefetchDepth;
+
+	private BlockingQueue<Page> ready;
+	private BlockingQueue<Topic[]> free;
+	private Thread fetcher;
+
+	private Topic[] page;
+	private int pageCount;
+	private int index;
+	private long nextFirstTopic;
+	private boolean finished;
+	private IOException failure;
+
+	public PrefetchingTopicIterator(TopicPageSource source, int pageSize, int prefetchDepth) {
+		if (pageSize < 1 || prefetchDepth < 0) {
+			throw new IllegalArgumentException("pageSize must be positive and prefetchDepth not negative");
+		}
+		this.source = source;
+		this.pageSize = pageSize;
+		this.prefetchDepth = prefetchDepth;
+		start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		fillPage();
+		return index < pageCount;
+	}
+
+	@Override
+	public Topic next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page[index++];
+	}
+
+	@Override
+	public Topic currentItem() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page[index];
+	}
+
+	@Override
+	public void reset() {
+		close();
+		start();
+	}
+
+	@Override
+	public void close() {
+		if (fetcher != null) {
+			fetcher.interrupt();
+			fetcher = null;
+		}
+		page = null;
+		pageCount = 0;
+		index = 0;
+		finished = true;
+	}
+
+	private void start() {
+		page = null;
+		pageCount = 0;
+		index = 0;
+		nextFirstTopic = 0;
+		finished = false;
+		failure = null;
+		if (prefetchDepth == 0) {
+			return;
+		}
+		ready = new ArrayBlockingQueue<>(prefetchDepth);
+		free = new ArrayBlockingQueue<>(prefetchDepth + 1);
+		for (int i = 0; i <= prefetchDepth; i++) {
+			free.add(new Topic[pageSize]);
+		}
+		fetcher = new Thread(new Fetcher(ready, free), "topic-prefetcher");
+		fetcher.setDaemon(true);
+		fetcher.start();
+	}
+
+	private void fillPage() {
+		if (failure != null) {
+			throw new UncheckedIOException(failure);
+		}
+		if (index < pageCount || finished) {
+			return;
+		}
+		try {
+			if (prefetchDepth == 0) {
+				if (page == null) {
+					page = new Topic[pageSize];
+				}
+				pageCount = source.readPage(nextFirstTopic, page);
+				nextFirstTopic += pageCount;
+			} else {
+				if (page != null) {
+					free.add(page);
+					page = null;
+					pageCount = 0;
+				}
+				Page next = ready.take();
+				if (next.failure != null) {
+					throw next.failure;
+				}
+				page = next.topics;
+				pageCount = next.count;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException());
+		} catch (IOException e) {
+			failure = e;
+			throw new UncheckedIOException(e);
+		}
+		index = 0;
+		finished = pageCount == 0;
+	}
+
+	private class Fetcher implements Runnable {
+		private final BlockingQueue<Page> ready;
+		private final BlockingQueue<Topic[]> free;
+
+		private Fetcher(BlockingQueue<Page> ready, BlockingQueue<Topic[]> free) {
+			this.ready = ready;
+			this.free = free;
+		}
+
+		@Override
+		public void run() {
+			long firstTopic = 0;
+			try {
+				while (true) {
+					Topic[] topics = free.take();
+					int count;
+					try {
+						count = source.readPage(firstTopic, topics);
+					} catch (IOException e) {
+						ready.put(new Page(null, 0, e));
+						return;
+					}
+					ready.put(new Page(topics, count, null));
+					if (count == 0) {
+						return;
+					}
+					firstTopic += count;
+				}
+			} catch (InterruptedException e) {
+				// Closed or reset by the iterator
+			}
+		}
+	}
+
+	private static class Page {
+		private final Topic[] topics;
+		private final int count;
+		private final IOException failure;
+
+		private Page(Topic[] topics, int count, IOException failure) {
+			this.topics = topics;
+			this.count = count;
+			this.failure = failure;
+		}
+	}
+}
+
+// Reads topics through a slow page source with and without
+// prefetching while the consumer spends time on every page
+//
+// java behavioral.PrefetchBenchmark [topics] [pageSize] [prefetchDepth] [latencyMillis]
+class PrefetchBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int prefetchDepth = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long latency = args.length > 3 ? Long.parseLong(args[3]) : 5;
+
+		Topic[] topics = new Topic[count];
+		for (int i = 0; i < count; i++) {
+			topics[i] = new Topic("topic " + i);
+		}
+		Path file = Files.createTempFile("topics", ".names");
+		MappedTopicList.write(file, new TopicList(topics).getIterator());
+		TopicPageSource source = new MappedTopicPageSource(new MappedTopicList(file), latency, TimeUnit.MILLISECONDS);
+
+		for (int depth : new int[] { 0, prefetchDepth }) {
+			long start = System.nanoTime();
+			long total = 0;
+			try (PrefetchingTopicIterator iterator = new PrefetchingTopicIterator(source, pageSize, depth)) {
+				for (int i = 0; iterator.hasNext(); i++) {
+					total += iterator.next().getName().length();
+					// Work on the page as long as reading it took
+					if (i % pageSize == pageSize - 1) {
+						long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency);
+						while (System.nanoTime() < until) {
+							Thread.onSpinWait();
+						}
+					}
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("prefetch depth %d: %,.0f topics/s (checksum %d)%n", depth, count / seconds, total);
+		}
+	}
+}
+
+public class IteratorDemo {
+	public static void main(String[] args) throws IOException {
 		Topic[] topics = new Topic[5];
 		for (int i = 0; i < 5; i++) {
 			topics[i] = new Topic("topic " + i);
@@ -104,5 +664,28 @@ public class IteratorDemo {
 			Topic currentTopic = iterator.next();
 			System.out.println(currentTopic.getName());
 		}
+
+		// The same topics copied out a batch at a time
+		iterator.reset();
+		Topic[] batch = new Topic[2];
+		for (int n; (n = iterator.nextBatch(batch, batch.length)) > 0;) {
+			for (int i = 0; i < n; i++) {
+				System.out.println("Batched " + batch[i].getName());
+			}
+		}
+
+		// The same topics through a parallel stream
+		TopicList topicList = new TopicList(topics);
+		System.out.println("Topics ending in 3: "
+				+ topicList.parallelStream().filter(topic -> topic.getName().endsWith("3")).count());
+
+		// The same topics written to a file and read back
+		// through a memory mapping
+		Path file = Files.createTempFile("topics", ".names");
+		MappedTopicList.write(file, topicList.getIterator());
+		Iterator<Topic> mappedIterator = new MappedTopicList(file).getIterator();
+		while (mappedIterator.hasNext()) {
+			System.out.println("Mapped " + mappedIterator.next().getName());
+		}
 	}
 }
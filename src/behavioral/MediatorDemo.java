@@ -1,7 +1,52 @@
 package behavioral;
 
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Mediator is a behavioral design pattern that lets you reduce chaotic
@@ -18,22 +63,725 @@ interface Mediator {
 	void sendMessage(String msg, String userId);
 
 	void addUser(User user);
+
+	void removeUser(String userId);
 }
 
-// Concrete Mediator
+// Concrete Mediator. Every user id is interned into a dense int
+// through a ConcurrentHashMap the first time it joins, and users
+// are kept in an array indexed by that int. sendMessage() reads
+// both without taking a lock while other threads add and remove
+// users; sendMessage(String, int) is a single array read, and
+// the String overload only looks the index up and calls it. The
+// slot of a user who leaves goes on a free list for the next one
+// to join, so a room whose users keep changing stays as large as
+// the most users it held at once. An index carries the slot's
+// generation in its top bits, which changes whenever the slot is
+// reused, so a cached index of a user who left matches nobody
+// rather than the slot's next user; this holds until a slot has
+// been reused 128 times. A room holds at most 2^24 users at once.
+// A message to a user that is not in the room is dropped.
+//
+// By default messages are delivered on the sender's thread. A
+// room created with a delivery executor gives every user a
+// UserMailbox instead, so a slow receiver only delays itself.
+//
+// Users can also join groups. broadcast() hands the same message
+// to every member: the members are split into batches that run
+// in parallel on the common fork-join pool, and each member was
+// resolved when joining, so there is no lookup per recipient.
+// Every member knows the groups it is in, so adding a user again
+// or removing it only touches those groups.
+//
+// A room given a MessageLog records every message before
+// delivering it, so users can catch up after reconnecting
 class ChatRoom implements Mediator {
 
-	private Map<String, User> usersMap = new HashMap<>();
+	// Members per fork-join task when broadcasting
+	private static final long BROADCAST_BATCH = 1024;
+
+	// An index is a 7 bit generation over a 24 bit slot
+	private static final int SLOT_BITS = 24;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int GENERATION_MASK = 0x7F;
+
+	private Map<String, Integer> indexes = new ConcurrentHashMap<>();
+	private volatile AtomicReferenceArray<Member> directory = new AtomicReferenceArray<>(16);
+	private int nextSlot;
+	// Indexes to hand out next for slots given up by users who left
+	private int[] freeIndexes = new int[16];
+	private int freeCount;
+	private Map<String, ConcurrentHashMap<String, Member>> groups = new ConcurrentHashMap<>();
+
+	private Executor deliveryExecutor;
+	private int mailboxCapacity;
+	private OverflowPolicy overflowPolicy;
+	private MessageLog messageLog;
+
+	public ChatRoom() {
+	}
+
+	public ChatRoom(Executor deliveryExecutor, int mailboxCapacity, OverflowPolicy overflowPolicy) {
+		this.deliveryExecutor = deliveryExecutor;
+		this.mailboxCapacity = mailboxCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void setMessageLog(MessageLog messageLog) {
+		this.messageLog = messageLog;
+	}
 
 	@Override
 	public void sendMessage(String msg, String userId) {
-		User u = usersMap.get(userId);
-		u.receive(msg);
+		Integer index = indexes.get(userId);
+		if (index != null) {
+			sendMessage(msg, index.intValue());
+		} else {
+			log(MessageLog.DIRECT, userId, msg);
+		}
+	}
+
+	// Sends to the user with the index returned by indexOf()
+	public void sendMessage(String msg, int userIndex) {
+		AtomicReferenceArray<Member> members = directory;
+		int slot = userIndex & SLOT_MASK;
+		if (userIndex < 0 || slot >= members.length()) {
+			return;
+		}
+		Member member = members.get(slot);
+		if (member == null || member.index != userIndex) {
+			return;
+		}
+		log(MessageLog.DIRECT, member.id, msg);
+		if (member.mailbox != null) {
+			if (!member.mailbox.offer(msg)) {
+				throw new RejectedExecutionException("Mailbox of user " + member.id + " is full");
+			}
+		} else {
+			member.user.receive(msg);
+		}
+	}
+
+	// The index of a user in the room, or -1 if it is not in it
+	public int indexOf(String userId) {
+		Integer index = indexes.get(userId);
+		return index != null ? index : -1;
 	}
 
 	@Override
-	public void addUser(User user) {
-		usersMap.put(user.getId(), user);
+	public synchronized void addUser(User user) {
+		Integer index = indexes.get(user.getId());
+		if (index == null) {
+			index = freeCount > 0 ? freeIndexes[--freeCount] : newSlot();
+		}
+		UserMailbox mailbox = deliveryExecutor == null ? null
+				: new UserMailbox(user, mailboxCapacity, overflowPolicy, deliveryExecutor);
+		// A user added again keeps its groups and replaces the old
+		// one in them
+		Member old = memberOf(user.getId());
+		Member member = new Member(index, user.getId(), user, mailbox);
+		directory.set(index & SLOT_MASK, member);
+		indexes.put(user.getId(), index);
+		if (old != null && old.groupIds != null) {
+			member.groupIds = old.groupIds;
+			for (String groupId : member.groupIds) {
+				groups.get(groupId).replace(user.getId(), member);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void removeUser(String userId) {
+		Member member = memberOf(userId);
+		if (member != null && member.groupIds != null) {
+			for (String groupId : member.groupIds) {
+				groups.get(groupId).remove(userId);
+			}
+		}
+		Integer index = indexes.remove(userId);
+		if (index != null) {
+			int slot = index & SLOT_MASK;
+			directory.set(slot, null);
+			if (freeCount == freeIndexes.length) {
+				freeIndexes = Arrays.copyOf(freeIndexes, freeCount * 2);
+			}
+			int generation = ((index >>> SLOT_BITS) + 1) & GENERATION_MASK;
+			freeIndexes[freeCount++] = generation << SLOT_BITS | slot;
+		}
+	}
+
+	// Takes the next slot never used before, growing the directory
+	// when it is full
+	private int newSlot() {
+		int slot = nextSlot;
+		if (slot > SLOT_MASK) {
+			throw new IllegalStateException("A room holds at most " + (SLOT_MASK + 1) + " users");
+		}
+		nextSlot++;
+		if (slot == directory.length()) {
+			AtomicReferenceArray<Member> grown = new AtomicReferenceArray<>(slot * 2);
+			for (int i = 0; i < slot; i++) {
+				grown.set(i, directory.get(i));
+			}
+			directory = grown;
+		}
+		return slot;
+	}
+
+	// Adds a user already in the room to a group, creating the
+	// group on first use. Returns false if the user is unknown.
+	// Holds the lock addUser() and removeUser() take, so a user
+	// leaving the room at the same time never stays in the group
+	public synchronized boolean joinGroup(String groupId, String userId) {
+		Member member = memberOf(userId);
+		if (member == null) {
+			return false;
+		}
+		groups.computeIfAbsent(groupId, id -> new ConcurrentHashMap<>()).put(userId, member);
+		if (member.groupIds == null) {
+			member.groupIds = new HashSet<>();
+		}
+		member.groupIds.add(groupId);
+		return true;
+	}
+
+	public synchronized void leaveGroup(String groupId, String userId) {
+		Map<String, Member> members = groups.get(groupId);
+		if (members != null) {
+			members.remove(userId);
+		}
+		Member member = memberOf(userId);
+		if (member != null && member.groupIds != null) {
+			member.groupIds.remove(groupId);
+		}
+	}
+
+	// Sends one message to every member of a group. With
+	// mailboxes, members whose mailbox refuses it are skipped
+	// and counted by their mailbox rather than failing the rest
+	public void broadcast(String groupId, String msg) {
+		ConcurrentHashMap<String, Member> members = groups.get(groupId);
+		if (members == null) {
+			return;
+		}
+		log(MessageLog.BROADCAST, groupId, msg);
+		members.forEachValue(BROADCAST_BATCH, member -> {
+			if (member.mailbox != null) {
+				member.mailbox.offer(msg);
+			} else {
+				member.user.receive(msg);
+			}
+		});
+	}
+
+	private void log(byte kind, String recipient, String msg) {
+		if (messageLog != null) {
+			try {
+				messageLog.append(kind, recipient, msg);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// The user's mailbox, or null if delivery is synchronous
+	public UserMailbox getMailbox(String userId) {
+		Member member = memberOf(userId);
+		return member != null ? member.mailbox : null;
+	}
+
+	public Collection<User> getUsers() {
+		AtomicReferenceArray<Member> members = directory;
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < members.length(); i++) {
+			Member member = members.get(i);
+			if (member != null) {
+				users.add(member.user);
+			}
+		}
+		return users;
+	}
+
+	private Member memberOf(String userId) {
+		Integer index = indexes.get(userId);
+		if (index == null) {
+			return null;
+		}
+		Member member = directory.get(index & SLOT_MASK);
+		return member != null && member.index == index ? member : null;
+	}
+
+	// A user in the directory. groupIds stays null until the user
+	// joins a group and is only used while holding the room's lock
+	private static class Member {
+		private final int index;
+		private final String id;
+		private final User user;
+		private final UserMailbox mailbox;
+		private Set<String> groupIds;
+
+		private Member(int index, String id, User user, UserMailbox mailbox) {
+			this.index = index;
+			this.id = id;
+			this.user = user;
+			this.mailbox = mailbox;
+		}
+	}
+}
+
+// What a UserMailbox does with a message when it is full
+enum OverflowPolicy {
+	// The sender waits for room
+	BLOCK,
+	// The oldest queued message is discarded
+	DROP_OLDEST,
+	// The message is refused and the sender is told
+	REJECT
+}
+
+// Bounded mailbox in front of one user. Any number of senders
+// add to a ring buffer; a single drain task, scheduled on the
+// executor only while messages are waiting, takes everything
+// queued in one step and delivers it outside the lock. On a JDK
+// with virtual threads, a virtual-thread-per-task executor gives
+// every busy mailbox its own virtual thread
+class UserMailbox implements Runnable {
+
+	private final User user;
+	private final OverflowPolicy policy;
+	private final Executor executor;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final String[] messages;
+	private final long[] enqueuedAt;
+	private int head;
+	private int count;
+
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder totalLatency = new LongAdder();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	// Reused by the drain task, which never runs twice at once
+	private final String[] batch;
+	private final long[] batchEnqueuedAt;
+
+	public UserMailbox(User user, int capacity, OverflowPolicy policy, Executor executor) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.user = user;
+		this.policy = policy;
+		this.executor = executor;
+		this.messages = new String[capacity];
+		this.enqueuedAt = new long[capacity];
+		this.batch = new String[capacity];
+		this.batchEnqueuedAt = new long[capacity];
+	}
+
+	// Returns false if the message was refused
+	public boolean offer(String msg) {
+		lock.lock();
+		try {
+			if (count == messages.length) {
+				switch (policy) {
+				case BLOCK:
+					while (count == messages.length) {
+						notFull.awaitUninterruptibly();
+					}
+					break;
+				case DROP_OLDEST:
+					messages[head] = null;
+					head = (head + 1) % messages.length;
+					count--;
+					dropped.increment();
+					break;
+				case REJECT:
+					rejected.increment();
+					return false;
+				}
+			}
+			int tail = (head + count) % messages.length;
+			messages[tail] = msg;
+			enqueuedAt[tail] = System.nanoTime();
+			count++;
+		} finally {
+			lock.unlock();
+		}
+		schedule();
+		return true;
+	}
+
+	// A receive() that throws is reported to the thread's uncaught
+	// exception handler and delivery goes on with the next message;
+	// however the task ends, the mailbox can be scheduled again
+	@Override
+	public void run() {
+		try {
+			int taken;
+			while ((taken = takeAll()) > 0) {
+				for (int i = 0; i < taken; i++) {
+					String msg = batch[i];
+					batch[i] = null;
+					try {
+						user.receive(msg);
+					} catch (RuntimeException e) {
+						Thread current = Thread.currentThread();
+						current.getUncaughtExceptionHandler().uncaughtException(current, e);
+					} finally {
+						long latency = System.nanoTime() - batchEnqueuedAt[i];
+						totalLatency.add(latency);
+						maxLatency.accumulateAndGet(latency, Math::max);
+						delivered.increment();
+					}
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			if (getQueueDepth() > 0) {
+				schedule();
+			}
+		}
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDeliveredCount() {
+		return delivered.sum();
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	// Average time from offer() to receive(), in nanoseconds
+	public double getAverageLatency() {
+		long count = delivered.sum();
+		return count == 0 ? 0 : (double) totalLatency.sum() / count;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	// A rejected task leaves the mailbox free to be scheduled by the
+	// next offer()
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private int takeAll() {
+		lock.lock();
+		try {
+			int taken = count;
+			for (int i = 0; i < taken; i++) {
+				int slot = (head + i) % messages.length;
+				batch[i] = messages[slot];
+				batchEnqueuedAt[i] = enqueuedAt[slot];
+				messages[slot] = null;
+			}
+			head = (head + taken) % messages.length;
+			count = 0;
+			if (taken > 0) {
+				notFull.signalAll();
+			}
+			return taken;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
+
+// Append-only log of the messages sent through a ChatRoom, so a
+// user that reconnects can catch up. Records are
+//
+//   int length | long timestamp | byte kind | short recipient
+//   length | recipient | message
+//
+// in UTF-8, where kind tells a direct message from a broadcast
+// and length counts everything after itself. Positions are byte
+// offsets into the whole log; each segment file is named after
+// the position of its first byte.
+//
+// Records collect in a buffer and reach the FileChannel in
+// batches: when the buffer fills, on flush() and every
+// FLUSH_MILLIS from a background thread. catchUp() copies
+// flushed bytes to the target channel with transferTo, so they
+// never pass through the heap.
+//
+// The same background thread applies retention: whole segments
+// are deleted while the log is over maxBytes or once their last
+// record is older than maxAge. The oldest segment is compacted
+// by rewriting it without its records older than maxAge, but only
+// once they take up at least 1/COMPACT_RATIO of it, so the file is
+// not rewritten every time another record at its front expires
+class MessageLog implements Closeable {
+
+	public static final byte DIRECT = 0;
+	public static final byte BROADCAST = 1;
+
+	static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + 1 + Short.BYTES;
+
+	private static final long FLUSH_MILLIS = 50;
+	private static final long RETENTION_MILLIS = 1000;
+	private static final int COMPACT_RATIO = 2;
+	private static final String SUFFIX = ".log";
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+
+	private final List<Segment> segments = new ArrayList<>();
+	private final Object retentionLock = new Object();
+	private final ByteBuffer pending = ByteBuffer.allocateDirect(1 << 16);
+	private final ScheduledExecutorService background;
+	private FileChannel active;
+
+	public MessageLog(Path directory, long segmentBytes, long maxBytes, long maxAge, TimeUnit unit)
+			throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = unit.toMillis(maxAge);
+
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+						file, Files.size(file)));
+			}
+		}
+		segments.sort((s1, s2) -> Long.compare(s1.base, s2.base));
+		if (segments.isEmpty()) {
+			roll(0);
+		} else {
+			active = FileChannel.open(last().file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+
+		background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "message-log");
+			thread.setDaemon(true);
+			return thread;
+		});
+		background.scheduleWithFixedDelay(this::flushQuietly, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+		background.scheduleWithFixedDelay(this::applyRetentionQuietly, RETENTION_MILLIS, RETENTION_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	// Returns the position the record was written at
+	public synchronized long append(byte kind, String recipient, String msg) throws IOException {
+		byte[] to = recipient.getBytes(StandardCharsets.UTF_8);
+		byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER_SIZE + to.length + body.length;
+		if (to.length > Short.MAX_VALUE || length > pending.capacity()) {
+			throw new IllegalArgumentException("Message too large for the log");
+		}
+		if (pending.remaining() < length) {
+			flush();
+		}
+		Segment segment = last();
+		if (segment.size + pending.position() + length > segmentBytes && segment.size + pending.position() > 0) {
+			flush();
+			roll(segment.base + segment.size);
+		}
+		long position = last().base + last().size + pending.position();
+		pending.putInt(length - Integer.BYTES).putLong(System.currentTimeMillis()).put(kind)
+				.putShort((short) to.length).put(to).put(body);
+		return position;
+	}
+
+	public synchronized void flush() throws IOException {
+		pending.flip();
+		while (pending.hasRemaining()) {
+			last().size += active.write(pending);
+		}
+		pending.clear();
+	}
+
+	// Position just past the last flushed record
+	public synchronized long getEndPosition() {
+		return last().base + last().size;
+	}
+
+	// Copies the flushed records from position onwards to target
+	// and returns the position to continue from. Positions that
+	// retention already removed continue at the oldest record left
+	public long catchUp(long position, WritableByteChannel target) throws IOException {
+		while (true) {
+			List<Segment> snapshot;
+			synchronized (this) {
+				snapshot = new ArrayList<>(segments);
+			}
+			position = Math.max(position, snapshot.get(0).base);
+			Segment segment = null;
+			for (Segment candidate : snapshot) {
+				if (position < candidate.base + candidate.size) {
+					segment = candidate;
+					break;
+				}
+			}
+			if (segment == null) {
+				return position;
+			}
+			try (FileChannel in = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+				long end = segment.size;
+				for (long offset = position - segment.base; offset < end;) {
+					offset += in.transferTo(offset, end - offset, target);
+				}
+				position = segment.base + end;
+			} catch (NoSuchFileException e) {
+				// Removed by retention meanwhile, look again
+			}
+		}
+	}
+
+	// Deletes and compacts segments as described above
+	public void applyRetention() throws IOException {
+		synchronized (retentionLock) {
+			long cutoff = System.currentTimeMillis() - maxAgeMillis;
+			while (true) {
+				Segment oldest;
+				long total = 0;
+				synchronized (this) {
+					if (segments.size() < 2) {
+						return;
+					}
+					oldest = segments.get(0);
+					for (Segment segment : segments) {
+						total += segment.size;
+					}
+				}
+				long expired = expiredBytes(oldest, cutoff);
+				if (total > maxBytes || expired == oldest.size) {
+					remove(oldest, null);
+					continue;
+				}
+				if (expired > 0 && expired >= oldest.size / COMPACT_RATIO) {
+					compact(oldest, expired);
+				}
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		background.shutdownNow();
+		flush();
+		active.close();
+	}
+
+	// Rewrites a segment starting at the record at offset; the
+	// new file is named after that record
+	private void compact(Segment segment, long offset) throws IOException {
+		try (FileChannel in = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+			Path file = directory.resolve(fileName(segment.base + offset));
+			try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				for (long copied = offset; copied < segment.size;) {
+					copied += in.transferTo(copied, segment.size - copied, out);
+				}
+			}
+			remove(segment, new Segment(segment.base + offset, file, segment.size - offset));
+		}
+	}
+
+	private void remove(Segment segment, Segment replacement) throws IOException {
+		synchronized (this) {
+			segments.remove(segment);
+			if (replacement != null) {
+				segments.add(0, replacement);
+			}
+		}
+		Files.deleteIfExists(segment.file);
+	}
+
+	// Offset of the first record in the segment that is not older
+	// than cutoff, or the segment's size once all of them are
+	private long expiredBytes(Segment segment, long cutoff) throws IOException {
+		try (FileChannel in = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+			long offset = 0;
+			while (offset < segment.size) {
+				header.clear();
+				in.read(header, offset);
+				header.flip();
+				int length = header.getInt();
+				if (header.getLong() >= cutoff) {
+					break;
+				}
+				offset += Integer.BYTES + length;
+			}
+			return offset;
+		}
+	}
+
+	private void roll(long base) throws IOException {
+		if (active != null) {
+			active.close();
+		}
+		Path file = directory.resolve(fileName(base));
+		active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		segments.add(new Segment(base, file, 0));
+	}
+
+	private Segment last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private static String fileName(long base) {
+		return String.format("%020d", base) + SUFFIX;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// Retried on the next run
+		}
+	}
+
+	private void applyRetentionQuietly() {
+		try {
+			applyRetention();
+		} catch (IOException e) {
+			// Retried on the next run
+		}
+	}
+
+	private static class Segment {
+		private final long base;
+		private final Path file;
+		private volatile long size;
+
+		private Segment(long base, Path file, long size) {
+			this.base = base;
+			this.file = file;
+			this.size = size;
+		}
 	}
 }
 
@@ -88,9 +836,609 @@ class ChatUser extends User {
 	}
 }
 
-public class MediatorDemo {
+// Thousands of senders against one ChatRoom while another thread
+// keeps removing and adding users. The same number of messages
+// is sent by 1 sender thread, one per core and the requested
+// number of senders, and the throughput is compared with a
+// target per core
+//
+// java behavioral.ChatRoomStressTest [senders] [messages] [targetPerCore]
+class ChatRoomStressTest {
+
+	private static final int USERS = 10_000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int senders = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+		long targetPerCore = args.length > 2 ? Long.parseLong(args[2]) : 2_000_000;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		// Warm up
+		run(cores, messages / 10);
+
+		boolean met = true;
+		for (int threads : new int[] { 1, cores, senders }) {
+			double throughput = run(threads, messages / threads);
+			long target = targetPerCore * Math.min(threads, cores);
+			met &= throughput >= target;
+			System.out.printf("%,5d senders: %,12.0f msg/s (target %,d)%n", threads, throughput, target);
+		}
+		System.out.println(met ? "PASS" : "FAIL");
+		if (!met) {
+			System.exit(1);
+		}
+	}
+
+	private static double run(int senders, int messages) throws InterruptedException {
+		Mediator room = new ChatRoom();
+		LongAdder received = new LongAdder();
+		for (int i = 0; i < USERS; i++) {
+			room.addUser(new CountingUser(room, Integer.toString(i), received));
+		}
+		String[] ids = new String[USERS];
+		for (int i = 0; i < USERS; i++) {
+			ids[i] = Integer.toString(i);
+		}
+
+		// Churn: users leave and join again while messages flow,
+		// paced so the churn thread doesn't steal a whole core
+		Thread churn = new Thread(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (!Thread.currentThread().isInterrupted()) {
+				String id = ids[random.nextInt(USERS)];
+				room.removeUser(id);
+				room.addUser(new CountingUser(room, id, received));
+				LockSupport.parkNanos(10_000);
+			}
+		});
+		churn.start();
+
+		CountDownLatch ready = new CountDownLatch(senders);
+		CountDownLatch go = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(senders);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < senders; t++) {
+			Thread sender = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				ready.countDown();
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < messages; i++) {
+					room.sendMessage("ping", ids[random.nextInt(USERS)]);
+				}
+				done.countDown();
+			});
+			threads.add(sender);
+			sender.start();
+		}
+		ready.await();
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		churn.interrupt();
+		churn.join();
+		return (double) senders * messages * 1e9 / elapsed;
+	}
+}
+
+// Consistent hash ring. Every shard is placed at VIRTUAL_NODES
+// points on the ring and a key belongs to the first point at or
+// after its own hash, so adding one shard to N only moves the
+// keys that land on the new shard's points: about 1/(N + 1)
+class ConsistentHashRing<T> {
+
+	private static final int VIRTUAL_NODES = 160;
+
+	private final TreeMap<Long, T> ring = new TreeMap<>();
+
+	public synchronized void add(String name, T shard) {
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.put(hash(name + "#" + i), shard);
+		}
+	}
+
+	public synchronized void remove(String name) {
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.remove(hash(name + "#" + i));
+		}
+	}
+
+	public synchronized T shardFor(String key) {
+		if (ring.isEmpty()) {
+			throw new IllegalStateException("No shards in the ring");
+		}
+		Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	// FNV-1a over the UTF-16 chars, finished with the MurmurHash3
+	// 64-bit mix so that similar keys spread over the whole ring
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
+
+// One node of a sharded chat: a ChatRoom holding the users placed
+// on this shard, and a non-blocking NIO server on localhost that
+// takes messages forwarded by other nodes. Frames are
+//
+//   int length | short user id length | user id | message
+//
+// in UTF-8, where length counts everything after itself and a
+// whole frame is at most MAX_FRAME bytes. A connection sending a
+// frame that is too long or malformed is dropped; the shard and
+// its other connections carry on
+class ChatShard implements Closeable {
+
+	public static final int MAX_FRAME = 1 << 16;
+
+	private final String name;
+	private final ChatRoom room = new ChatRoom();
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread loop;
+
+	public ChatShard(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.loop = new Thread(this::serve, "chat-shard-" + name);
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ChatRoom getRoom() {
+		return room;
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		loop.interrupt();
+		selector.wakeup();
+		try {
+			loop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	private void serve() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				for (java.util.Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						SocketChannel client = server.accept();
+						if (client != null) {
+							client.configureBlocking(false);
+							client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(MAX_FRAME));
+						}
+					} else if (key.isReadable()) {
+						try {
+							read(key);
+						} catch (IOException e) {
+							drop(key);
+						}
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			// Shard closed
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		if (client.read(buffer) < 0) {
+			drop(key);
+			return;
+		}
+		buffer.flip();
+		while (buffer.remaining() >= Integer.BYTES) {
+			int length = buffer.getInt(buffer.position());
+			if (length < Short.BYTES || length > MAX_FRAME - Integer.BYTES) {
+				// Malformed, or can never fit the buffer
+				drop(key);
+				return;
+			}
+			if (buffer.remaining() < Integer.BYTES + length) {
+				break;
+			}
+			buffer.getInt();
+			int idLength = buffer.getShort();
+			if (idLength < 0 || idLength > length - Short.BYTES) {
+				drop(key);
+				return;
+			}
+			byte[] id = new byte[idLength];
+			buffer.get(id);
+			byte[] msg = new byte[length - Short.BYTES - idLength];
+			buffer.get(msg);
+			room.sendMessage(new String(msg, StandardCharsets.UTF_8), new String(id, StandardCharsets.UTF_8));
+		}
+		buffer.compact();
+	}
+
+	private void drop(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Already gone
+		}
+	}
+}
+
+// Mediator spreading users over ChatShards by consistent hashing
+// on User.getId(). Messages for users on the local shard are
+// delivered directly; all others are forwarded to the owning
+// shard over a SocketChannel kept open per shard. Users are
+// placed on their shard's room directly, as every shard runs in
+// this JVM; across machines a user would connect to its shard.
+// A connection that fails is closed and opened again on the next
+// message for that shard
+class ShardedChatRoom implements Mediator, Closeable {
+
+	private final ChatShard local;
+	private final ConsistentHashRing<ChatShard> ring = new ConsistentHashRing<>();
+	private final List<ChatShard> shards = new CopyOnWriteArrayList<>();
+	private final Map<ChatShard, SocketChannel> connections = new ConcurrentHashMap<>();
+
+	public ShardedChatRoom(ChatShard local) {
+		this.local = local;
+		addShard(local);
+	}
+
+	@Override
+	public void sendMessage(String msg, String userId) {
+		ChatShard owner = ring.shardFor(userId);
+		if (owner == local) {
+			local.getRoom().sendMessage(msg, userId);
+			return;
+		}
+		byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+		byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+		int size = Integer.BYTES + Short.BYTES + id.length + body.length;
+		if (id.length > Short.MAX_VALUE || size > ChatShard.MAX_FRAME) {
+			throw new IllegalArgumentException(
+					"message of " + size + " bytes is longer than " + ChatShard.MAX_FRAME + " bytes");
+		}
+		ByteBuffer frame = ByteBuffer.allocate(size);
+		frame.putInt(Short.BYTES + id.length + body.length).putShort((short) id.length).put(id).put(body).flip();
+		try {
+			write(owner, frame);
+		} catch (IOException e) {
+			// Try once more on a new connection
+			frame.rewind();
+			try {
+				write(owner, frame);
+			} catch (IOException again) {
+				throw new UncheckedIOException(again);
+			}
+		}
+	}
+
+	@Override
+	public void addUser(User user) {
+		ring.shardFor(user.getId()).getRoom().addUser(user);
+	}
+
+	@Override
+	public void removeUser(String userId) {
+		ring.shardFor(userId).getRoom().removeUser(userId);
+	}
+
+	// Adds a shard to the ring and moves over the users that now
+	// belong to it. Returns how many users moved
+	public synchronized int addShard(ChatShard shard) {
+		ring.add(shard.getName(), shard);
+		shards.add(shard);
+		int moved = 0;
+		for (ChatShard other : shards) {
+			if (other == shard) {
+				continue;
+			}
+			for (User user : other.getRoom().getUsers()) {
+				if (ring.shardFor(user.getId()) == shard) {
+					other.getRoom().removeUser(user.getId());
+					shard.getRoom().addUser(user);
+					moved++;
+				}
+			}
+		}
+		return moved;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (SocketChannel connection : connections.values()) {
+			connection.close();
+		}
+	}
+
+	private void write(ChatShard shard, ByteBuffer frame) throws IOException {
+		SocketChannel connection = connectionTo(shard);
+		try {
+			synchronized (connection) {
+				while (frame.hasRemaining()) {
+					connection.write(frame);
+				}
+			}
+		} catch (IOException e) {
+			connections.remove(shard, connection);
+			connection.close();
+			throw e;
+		}
+	}
+
+	private SocketChannel connectionTo(ChatShard shard) throws IOException {
+		SocketChannel connection = connections.get(shard);
+		if (connection == null) {
+			synchronized (connections) {
+				connection = connections.get(shard);
+				if (connection == null) {
+					connection = SocketChannel.open(shard.getAddress());
+					connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					connections.put(shard, connection);
+				}
+			}
+		}
+		return connection;
+	}
+}
+
+// Runs a sharded room with every shard on localhost: checks that
+// every message reaches its user across shards, then adds a shard
+// and checks that about 1/N of the users move
+//
+// java behavioral.ShardedChatRoomTest [shards] [users]
+class ShardedChatRoomTest {
+
+	public static void main(String[] args) throws Exception {
+		int shardCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 30_000;
+
+		List<ChatShard> shards = new ArrayList<>();
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new ChatShard("shard-" + i));
+		}
+		LongAdder received = new LongAdder();
+		boolean passed = true;
+		try (ShardedChatRoom room = new ShardedChatRoom(shards.get(0))) {
+			for (int i = 1; i < shardCount; i++) {
+				room.addShard(shards.get(i));
+			}
+			for (int i = 0; i < users; i++) {
+				room.addUser(new CountingUser(room, "user-" + i, received));
+			}
+			for (ChatShard shard : shards) {
+				System.out.printf("%s holds %,d users%n", shard.getName(), shard.getRoom().getUsers().size());
+			}
+
+			passed &= deliverToAll(room, users, received);
+			passed &= rejectsBadFrames(room, shards, users, received);
+
+			ChatShard added = new ChatShard("shard-" + shardCount);
+			shards.add(added);
+			int moved = room.addShard(added);
+			double expected = 1.0 / (shardCount + 1);
+			double fraction = (double) moved / users;
+			System.out.printf("Adding %s moved %,d users (%.3f, expected about %.3f)%n", added.getName(), moved,
+					fraction, expected);
+			passed &= Math.abs(fraction - expected) < expected / 2;
+
+			passed &= deliverToAll(room, users, received);
+		} finally {
+			for (ChatShard shard : shards) {
+				shard.close();
+			}
+		}
+		System.out.println(passed ? "PASS" : "FAIL");
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	// A message too long for a frame is refused by the sender, and a
+	// malformed frame costs only the connection that sent it
+	private static boolean rejectsBadFrames(ShardedChatRoom room, List<ChatShard> shards, int users,
+			LongAdder received) throws IOException, InterruptedException {
+		boolean passed = true;
+		if (shards.size() > 1) {
+			String remoteUser = null;
+			for (int i = 0; remoteUser == null; i++) {
+				if (shards.get(0).getRoom().indexOf("user-" + i) < 0) {
+					remoteUser = "user-" + i;
+				}
+			}
+			try {
+				room.sendMessage("x".repeat(70_000), remoteUser);
+				System.out.println("Oversize message was sent");
+				passed = false;
+			} catch (IllegalArgumentException e) {
+				System.out.println("Oversize message refused: " + e.getMessage());
+			}
+		}
+		for (ChatShard shard : shards) {
+			try (SocketChannel bad = SocketChannel.open(shard.getAddress())) {
+				ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + Short.BYTES);
+				frame.putInt(Short.BYTES).putShort((short) -1).flip();
+				bad.write(frame);
+			}
+		}
+		return passed & deliverToAll(room, users, received);
+	}
+
+	private static boolean deliverToAll(ShardedChatRoom room, int users, LongAdder received)
+			throws InterruptedException {
+		received.reset();
+		long start = System.nanoTime();
+		for (int i = 0; i < users; i++) {
+			room.sendMessage("hello", "user-" + i);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (received.sum() < users && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("Delivered %,d of %,d messages in %,d ms%n", received.sum(), users, elapsed / 1_000_000);
+		return received.sum() == users;
+	}
+}
+
+// Lookup cost of sendMessage by String id and by interned int,
+// and the memory ChatRoom spends per user. The users exist before
+// the room is measured, so only the room's own cost is counted.
+// 10M users need a few GB of heap, e.g. -Xmx4g
+//
+// java -Xmx4g behavioral.UserDirectoryBenchmark [users]
+class UserDirectoryBenchmark {
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		LongAdder received = new LongAdder();
+		ChatRoom room = new ChatRoom();
+
+		String[] ids = new String[count];
+		User[] users = new User[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = Integer.toString(i);
+			users[i] = new CountingUser(room, ids[i], received);
+		}
+
+		long before = usedMemory();
+		for (User user : users) {
+			room.addUser(user);
+		}
+		long after = usedMemory();
+		System.out.printf("%,d users: %.1f bytes per user in the room%n", count, (double) (after - before) / count);
+
+		int[] indexes = new int[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = room.indexOf(ids[i]);
+		}
+		int[] order = new int[count];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < count; i++) {
+			order[i] = random.nextInt(count);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i : order) {
+				room.sendMessage("ping", ids[i]);
+			}
+			long byString = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i : order) {
+				room.sendMessage("ping", indexes[i]);
+			}
+			long byIndex = System.nanoTime() - start;
+
+			System.out.printf("round %d: by String id %.1f ns, by int index %.1f ns per message%n", round,
+					(double) byString / count, (double) byIndex / count);
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
+
+// Quiet Colleague for load tests, counting what it receives
+class CountingUser extends User {
+	private final LongAdder received;
+
+	public CountingUser(Mediator mediator, String id, LongAdder received) {
+		super(mediator, id, "user " + id);
+		this.received = received;
+	}
+
+	@Override
+	public void send(String msg, String userId) {
+		getMediator().sendMessage(msg, userId);
+	}
+
+	@Override
+	public void receive(String msg) {
+		received.increment();
+	}
+}
+
+// Broadcast fan-out to groups of 1k, 100k and 1M members
+//
+// java behavioral.BroadcastBenchmark [messages]
+class BroadcastBenchmark {
 
 	public static void main(String[] args) {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		for (int members : new int[] { 1_000, 100_000, 1_000_000 }) {
+			ChatRoom room = new ChatRoom();
+			LongAdder received = new LongAdder();
+			for (int i = 0; i < members; i++) {
+				String id = Integer.toString(i);
+				room.addUser(new CountingUser(room, id, received));
+				room.joinGroup("everyone", id);
+			}
+
+			// Warm up
+			for (int i = 0; i < messages; i++) {
+				room.broadcast("everyone", "hello");
+			}
+			received.reset();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				room.broadcast("everyone", "hello");
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("%,9d members: %,14.0f deliveries/s, %,10.1f us per broadcast%n", members,
+					received.sum() * 1e9 / elapsed, elapsed / 1e3 / messages);
+		}
+	}
+}
+
+public class MediatorDemo {
+
+	public static void main(String[] args) throws InterruptedException, IOException {
 		Mediator chatroom = new ChatRoom();
 
 		User user1 = new ChatUser(chatroom, "1", "Alex");
@@ -105,6 +1453,36 @@ public class MediatorDemo {
 
 		user1.send("Hello Brian", "2");
 		user2.send("Hey buddy", "1");
+
+		// One message to a whole group
+		ChatRoom room = (ChatRoom) chatroom;
+		room.joinGroup("friends", "3");
+		room.joinGroup("friends", "4");
+		room.broadcast("friends", "Dinner at eight");
+
+		// Messages delivered from per-user mailboxes
+		ExecutorService delivery = Executors.newCachedThreadPool();
+		ChatRoom asyncRoom = new ChatRoom(delivery, 16, OverflowPolicy.BLOCK);
+		User user5 = new ChatUser(asyncRoom, "5", "Emma");
+		User user6 = new ChatUser(asyncRoom, "6", "Frank");
+		asyncRoom.addUser(user5);
+		asyncRoom.addUser(user6);
+
+		user5.send("Hi Frank", "6");
+		delivery.shutdown();
+		delivery.awaitTermination(1, TimeUnit.SECONDS);
+		UserMailbox mailbox = asyncRoom.getMailbox("6");
+		System.out.println("Delivered " + mailbox.getDeliveredCount() + ", queued " + mailbox.getQueueDepth());
+
+		// Messages kept in a log and replayed to a channel
+		Path logDirectory = Files.createTempDirectory("chat");
+		try (MessageLog log = new MessageLog(logDirectory, 1 << 20, 1 << 30, 7, TimeUnit.DAYS)) {
+			room.setMessageLog(log);
+			user1.send("Are you there?", "2");
+			log.flush();
+			long end = log.catchUp(0, Channels.newChannel(new ByteArrayOutputStream()));
+			System.out.println("Caught up to position " + end);
+		}
 	}
 
 }
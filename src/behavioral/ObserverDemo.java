@@ -1,7 +1,37 @@
 package behavioral;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.management.ThreadMXBean;
 
 /**
  * Observer is a behavioral design pattern that lets you define a subscription
@@ -14,16 +44,109 @@ import java.util.List;
 
 abstract class Observer {
 	protected Subject subject;
+	protected Registration registration;
+
+	public Registration getRegistration() {
+		return registration;
+	}
+
+	// Called with the state this update is for, which may already
+	// have been replaced by a newer one
+	public abstract void update(int state);
 
-	public abstract void update();
+	// Updates with the newest state
+	public void update() {
+		update(subject.getState());
+	}
+
+	// Called once the Registration has been unsubscribed
+	protected void unsubscribed() {
+	}
 }
 
-class Subject {
-	private List<Observer> observers = new ArrayList<>();
-	private int state;
+// Observers are kept in an array that is replaced, never changed,
+// whenever one is added, so notifying reads a snapshot without a
+// lock and observers may come and go while it runs. Removing an
+// observer only marks its Registration; the array is compacted
+// once more than half of it is marked, which keeps removal O(1)
+// amortized.
+//
+// A Subject created with an executor runs every update() there
+// instead of on the thread calling setState(), either once per
+// state change or conflated as described in DeliveryMode. A
+// Subject created with a StateEventBus publishes every change to
+// the bus, which hands each observer the value of each change.
+//
+// A Subject is also a Flow.Publisher of its states. Every
+// subscriber gets a bounded buffer that is filled as the state
+// changes and emptied only as fast as the subscriber asks for
+// items; what happens when it is full is set by a BackpressurePolicy
+class Subject implements Flow.Publisher<Integer> {
+	private volatile Registration[] observers = new Registration[0];
+	private int cancelled;
+	private volatile int state;
+	private Executor executor;
+	private DeliveryMode mode = DeliveryMode.SYNCHRONOUS;
+	private StateEventBus bus;
+
+	public Subject() {
+	}
+
+	// setState() must then only be called from one thread
+	public Subject(StateEventBus bus) {
+		this.bus = bus;
+	}
+
+	public Subject(Executor executor) {
+		this(executor, DeliveryMode.ASYNCHRONOUS);
+	}
+
+	public Subject(Executor executor, DeliveryMode mode) {
+		this.executor = executor;
+		this.mode = mode;
+	}
+
+	public synchronized Registration add(Observer o) {
+		Registration[] current = observers;
+		Registration[] next = new Registration[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		Registration registration = new Registration(this, o);
+		next[current.length] = registration;
+		observers = next;
+		if (bus != null) {
+			bus.subscribe(registration);
+		}
+		return registration;
+	}
+
+	// Buffers Flow.defaultBufferSize() states and makes setState()
+	// wait while the buffer is full, like SubmissionPublisher
+	@Override
+	public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+		subscribe(subscriber, Flow.defaultBufferSize(), BackpressurePolicy.BLOCK);
+	}
+
+	// Items are delivered on the Subject's executor, or on the
+	// common pool if it has none
+	public StateSubscription subscribe(Flow.Subscriber<? super Integer> subscriber, int capacity,
+			BackpressurePolicy policy) {
+		StateSubscription subscription = new StateSubscription(this, subscriber, capacity, policy,
+				executor != null ? executor : ForkJoinPool.commonPool());
+		subscriber.onSubscribe(subscription);
+		subscription.register();
+		return subscription;
+	}
 
-	public void add(Observer o) {
-		observers.add(o);
+	// Moves an observer that already watches this Subject behind a
+	// buffer of its own, so a slow observer no longer holds up
+	// setState(). Its Registration then cancels the subscription
+	public StateSubscription subscribe(Observer observer, int capacity, BackpressurePolicy policy) {
+		if (observer.registration != null) {
+			observer.registration.unsubscribe();
+		}
+		StateSubscription subscription = subscribe(new ObserverSubscriber(observer, capacity), capacity, policy);
+		observer.registration = subscription.getRegistration();
+		return subscription;
 	}
 
 	public int getState() {
@@ -36,55 +159,1015 @@ class Subject {
 	}
 
 	private void execute() {
-		for (Observer observer : observers) {
-			observer.update();
+		int value = state;
+		if (bus != null) {
+			bus.publish(value);
+			return;
 		}
+		for (Registration registration : observers) {
+			if (registration.isActive()) {
+				Observer observer = registration.getObserver();
+				switch (mode) {
+				case SYNCHRONOUS:
+					observer.update(value);
+					break;
+				case ASYNCHRONOUS:
+					registration.deliver(value, executor);
+					break;
+				case CONFLATING:
+					registration.requestUpdate(executor);
+					break;
+				}
+			}
+		}
+	}
+
+	synchronized void cancelled(Registration gone) {
+		if (bus != null) {
+			bus.unsubscribe(gone);
+		}
+		Registration[] current = observers;
+		if (++cancelled * 2 <= current.length) {
+			return;
+		}
+		int active = 0;
+		for (Registration registration : current) {
+			if (registration.isActive()) {
+				active++;
+			}
+		}
+		Registration[] next = new Registration[active];
+		int i = 0;
+		for (Registration registration : current) {
+			if (registration.isActive()) {
+				next[i++] = registration;
+			}
+		}
+		observers = next;
+		cancelled = 0;
+	}
+}
+
+// How a Subject runs Observer.update()
+enum DeliveryMode {
+	// On the thread calling setState()
+	SYNCHRONOUS,
+	// On the executor, once for every state change, with the value
+	// of that change. An observer gets its updates one at a time
+	// and in order, whatever the executor
+	ASYNCHRONOUS,
+	// On the executor, at most one run per observer at a time.
+	// Changes made while an observer is busy collapse into one
+	// more update(), which reads the newest state, so a slow
+	// observer skips states instead of falling behind and the
+	// producer never waits
+	CONFLATING
+}
+
+// Handle returned by Subject.add() to stop observing
+class Registration {
+	private final Subject subject;
+	private final Observer observer;
+	private volatile boolean active = true;
+
+	// State changes not yet seen by the observer in
+	// CONFLATING mode, and how many were skipped
+	private final AtomicInteger requested = new AtomicInteger();
+	private final LongAdder conflated = new LongAdder();
+
+	// State changes queued for the observer in ASYNCHRONOUS mode
+	private final Queue<Integer> queued = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	Registration(Subject subject, Observer observer) {
+		this.subject = subject;
+		this.observer = observer;
+	}
+
+	public Observer getObserver() {
+		return observer;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public void unsubscribe() {
+		if (active) {
+			active = false;
+			subject.cancelled(this);
+			observer.unsubscribed();
+		}
+	}
+
+	// State changes this observer never saw because newer ones
+	// arrived first
+	public long getConflatedCount() {
+		return conflated.sum();
+	}
+
+	// Only one drain task per observer runs at a time, and it hands
+	// over the values in the order they were queued
+	void deliver(int state, Executor executor) {
+		queued.add(state);
+		if (pending.getAndIncrement() == 0) {
+			executor.execute(this::drainQueued);
+		}
+	}
+
+	// An update() that throws is reported and the next value is
+	// still delivered, so one failure never stalls the observer
+	private void drainQueued() {
+		do {
+			int state = queued.remove();
+			if (active) {
+				try {
+					observer.update(state);
+				} catch (RuntimeException e) {
+					report(e);
+				}
+			}
+		} while (pending.decrementAndGet() != 0);
+	}
+
+	void requestUpdate(Executor executor) {
+		if (requested.getAndIncrement() == 0) {
+			executor.execute(this::drain);
+		}
+	}
+
+	private static void report(RuntimeException e) {
+		Thread current = Thread.currentThread();
+		current.getUncaughtExceptionHandler().uncaughtException(current, e);
+	}
+
+	// Each pass covers every change requested before update()
+	// read the state; only the last of them is actually seen. A
+	// failing update() is reported and does not end the drain
+	private void drain() {
+		int seen;
+		do {
+			seen = requested.get();
+			if (active) {
+				try {
+					observer.update();
+				} catch (RuntimeException e) {
+					report(e);
+				}
+			}
+			conflated.add(seen - 1);
+		} while (requested.addAndGet(-seen) != 0);
+	}
+}
+
+// What a StateSubscription does with a state when its buffer is full
+enum BackpressurePolicy {
+	// setState() waits for room
+	BLOCK,
+	// The oldest queued state is discarded
+	DROP_OLDEST,
+	// The new state is discarded
+	REJECT
+}
+
+// One subscriber to a Subject. It watches the Subject as an
+// Observer and queues every state it is told about in a ring of
+// ints. A single drain task, scheduled on the executor only while
+// there is something to do, passes states to onNext() outside the
+// lock and only as far as the subscriber's demand goes. Errors are
+// signalled from the same task, so the subscriber never gets two
+// calls at once
+class StateSubscription extends Observer implements Flow.Subscription, Runnable {
+
+	// Outside the int range, so no state is mistaken for it
+	private static final long NONE = Long.MIN_VALUE;
+
+	private final Flow.Subscriber<? super Integer> subscriber;
+	private final BackpressurePolicy policy;
+	private final Executor executor;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final int[] states;
+	private int head;
+	private int count;
+
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean cancelled;
+	// Set by a bad request(), signalled by the drain task
+	private volatile Throwable error;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	StateSubscription(Subject subject, Flow.Subscriber<? super Integer> subscriber, int capacity,
+			BackpressurePolicy policy, Executor executor) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.subject = subject;
+		this.subscriber = subscriber;
+		this.policy = policy;
+		this.executor = executor;
+		this.states = new int[capacity];
+	}
+
+	// Called once onSubscribe() has returned, so no state is queued
+	// before the subscriber has its Subscription
+	void register() {
+		registration = subject.add(this);
+		if (cancelled) {
+			registration.unsubscribe();
+		}
+	}
+
+	@Override
+	public void update(int state) {
+		lock.lock();
+		try {
+			if (cancelled) {
+				return;
+			}
+			if (count == states.length) {
+				switch (policy) {
+				case BLOCK:
+					while (count == states.length && !cancelled) {
+						notFull.awaitUninterruptibly();
+					}
+					if (cancelled) {
+						return;
+					}
+					break;
+				case DROP_OLDEST:
+					head = (head + 1) % states.length;
+					count--;
+					dropped.increment();
+					break;
+				case REJECT:
+					rejected.increment();
+					return;
+				}
+			}
+			states[(head + count) % states.length] = state;
+			count++;
+		} finally {
+			lock.unlock();
+		}
+		schedule();
+	}
+
+	@Override
+	public void request(long n) {
+		if (cancelled) {
+			return;
+		}
+		if (n <= 0) {
+			error = new IllegalArgumentException("request must be positive, was " + n);
+		} else {
+			demand.accumulateAndGet(n, (current, added) -> {
+				long sum = current + added;
+				return sum < 0 ? Long.MAX_VALUE : sum;
+			});
+		}
+		schedule();
+	}
+
+	@Override
+	public void cancel() {
+		lock.lock();
+		try {
+			cancelled = true;
+			count = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (registration != null) {
+			registration.unsubscribe();
+		}
+	}
+
+	// Unsubscribing the Registration cancels the subscription
+	@Override
+	protected void unsubscribed() {
+		cancel();
+	}
+
+	@Override
+	public void run() {
+		try {
+			Throwable failure = error;
+			if (failure != null) {
+				error = null;
+				cancel();
+				subscriber.onError(failure);
+				return;
+			}
+			long state;
+			while (!cancelled && demand.get() > 0 && (state = poll()) != NONE) {
+				try {
+					subscriber.onNext((int) state);
+				} catch (RuntimeException e) {
+					cancel();
+					subscriber.onError(e);
+					return;
+				}
+				if (demand.get() != Long.MAX_VALUE) {
+					demand.decrementAndGet();
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			if (error != null || (!cancelled && demand.get() > 0 && getQueueDepth() > 0)) {
+				schedule();
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	// Returns the oldest queued state, or NONE if there is none
+	private long poll() {
+		lock.lock();
+		try {
+			if (count == 0) {
+				return NONE;
+			}
+			int state = states[head];
+			head = (head + 1) % states.length;
+			count--;
+			notFull.signal();
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
+
+// Passes the states an Observer subscribes to on to its
+// update(int), asking for a buffer's worth at a time
+class ObserverSubscriber implements Flow.Subscriber<Integer> {
+
+	private final Observer observer;
+	private final int batch;
+	private Flow.Subscription subscription;
+	private int received;
+
+	public ObserverSubscriber(Observer observer, int batch) {
+		this.observer = observer;
+		this.batch = batch;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(batch);
+	}
+
+	@Override
+	public void onNext(Integer state) {
+		observer.update(state);
+		if (++received == batch) {
+			received = 0;
+			subscription.request(batch);
+		}
+	}
+
+	// Observers have nowhere to report errors to
+	@Override
+	public void onError(Throwable throwable) {
+	}
+
+	@Override
+	public void onComplete() {
 	}
 }
 
 class HexObserver extends Observer {
+	private RadixOutput output;
+
 	public HexObserver(Subject subject) {
 		this.subject = subject;
-		this.subject.add(this);
+		this.registration = this.subject.add(this);
 	}
 
-	public void update() {
-		System.out.print(" " + Integer.toHexString(subject.getState()));
+	// Writes to output instead of System.out, without allocating
+	public HexObserver(Subject subject, RadixOutput output) {
+		this.output = output;
+		this.subject = subject;
+		this.registration = this.subject.add(this);
+	}
+
+	@Override
+	public void update(int state) {
+		if (output != null) {
+			output.write(state, 4);
+		} else {
+			System.out.print(" " + Integer.toHexString(state));
+		}
 	}
 }
 
 class OctObserver extends Observer {
+	private RadixOutput output;
+
 	public OctObserver(Subject subject) {
 		this.subject = subject;
-		this.subject.add(this);
+		this.registration = this.subject.add(this);
 	}
 
-	public void update() {
-		System.out.print(" " + Integer.toOctalString(subject.getState()));
+	// Writes to output instead of System.out, without allocating
+	public OctObserver(Subject subject, RadixOutput output) {
+		this.output = output;
+		this.subject = subject;
+		this.registration = this.subject.add(this);
+	}
+
+	@Override
+	public void update(int state) {
+		if (output != null) {
+			output.write(state, 3);
+		} else {
+			System.out.print(" " + Integer.toOctalString(state));
+		}
 	}
 }
 
 class BinObserver extends Observer {
+	private RadixOutput output;
+
 	public BinObserver(Subject subject) {
 		this.subject = subject;
-		this.subject.add(this);
+		this.registration = this.subject.add(this);
 	}
 
-	public void update() {
-		System.out.print(" " + Integer.toBinaryString(subject.getState()));
+	// Writes to output instead of System.out, without allocating
+	public BinObserver(Subject subject, RadixOutput output) {
+		this.output = output;
+		this.subject = subject;
+		this.registration = this.subject.add(this);
+	}
+
+	@Override
+	public void update(int state) {
+		if (output != null) {
+			output.write(state, 1);
+		} else {
+			System.out.print(" " + Integer.toBinaryString(state));
+		}
 	}
 }
 
-public class ObserverDemo {
+// Prints numbers the way the radix observers do, " " followed by
+// Integer.toHexString(), toOctalString() or toBinaryString(), but
+// formats them into a byte buffer and hands the buffer to the
+// channel only when it is full or on flush(), so an update
+// allocates nothing. The buffer is shared by every thread and
+// guarded by the channel's lock, so numbers are never torn and
+// flush() writes out what any thread wrote
+class RadixOutput {
+
+	private static final byte[] DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	// " " and 32 binary digits
+	private static final int MAX_LENGTH = 33;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	public RadixOutput(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_LENGTH));
+	}
+
+	// Standard output, which System.out also writes to: flush before
+	// printing there
+	public static RadixOutput standardOutput() {
+		return new RadixOutput(new FileOutputStream(FileDescriptor.out).getChannel(), 8192);
+	}
+
+	// Writes " " and value as an unsigned number with shift bits per
+	// digit: 4 for hex, 3 for octal, 1 for binary
+	public void write(int value, int shift) {
+		int digits = Math.max((32 - Integer.numberOfLeadingZeros(value) + shift - 1) / shift, 1);
+		int mask = (1 << shift) - 1;
+		synchronized (channel) {
+			if (buffer.remaining() < MAX_LENGTH) {
+				drain();
+			}
+			int position = buffer.position();
+			buffer.put(position, (byte) ' ');
+			for (int i = position + digits; i > position; i--) {
+				buffer.put(i, DIGITS[value & mask]);
+				value >>>= shift;
+			}
+			buffer.position(position + digits + 1);
+		}
+	}
+
+	// Writes out whatever has been buffered, by any thread
+	public void flush() {
+		synchronized (channel) {
+			drain();
+		}
+	}
+
+	// Called holding the channel's lock
+	private void drain() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			buffer.clear();
+		}
+	}
+}
+
+// Checks that the radix observers print the same text through
+// RadixOutput as through System.out, and measures what an update
+// allocates on each path with the JDK's per-thread allocation
+// counter. Exits with 1 if the text differs or the RadixOutput
+// path allocates
+//
+// java behavioral.RadixOutputAllocationCheck [updates]
+class RadixOutputAllocationCheck {
+
 	public static void main(String[] args) {
+		int updates = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		boolean ok = sameText();
+
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Subject plain = new Subject();
+		observe(plain, null);
+		run(plain, updates);
+		long before = threads.getThreadAllocatedBytes(thread);
+		run(plain, updates);
+		long plainBytes = threads.getThreadAllocatedBytes(thread) - before;
+		System.setOut(out);
+
+		RadixOutput output = new RadixOutput(new DiscardingChannel(), 8192);
+		Subject formatted = new Subject();
+		observe(formatted, output);
+		run(formatted, updates);
+		before = threads.getThreadAllocatedBytes(thread);
+		run(formatted, updates);
+		long formattedBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.printf("System.out: %.1f bytes per update%n", (double) plainBytes / updates);
+		System.out.printf("RadixOutput: %.1f bytes per update (%d bytes in total)%n",
+				(double) formattedBytes / updates, formattedBytes);
+		ok &= formattedBytes == 0;
+		System.out.println(ok ? "OK" : "FAILED");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean sameText() {
+		int[] values = { 0, 1, 7, 8, 15, 16, 100, 255, 256, 4095, Integer.MAX_VALUE, -1, Integer.MIN_VALUE, -42 };
+		StringBuilder expected = new StringBuilder();
+		for (int value : values) {
+			expected.append(" " + Integer.toHexString(value));
+			expected.append(" " + Integer.toOctalString(value));
+			expected.append(" " + Integer.toBinaryString(value));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RadixOutput output = new RadixOutput(Channels.newChannel(bytes), 64);
+		Subject subject = new Subject();
+		observe(subject, output);
+		for (int value : values) {
+			subject.setState(value);
+		}
+		output.flush();
+		String actual = bytes.toString(StandardCharsets.US_ASCII);
+		if (!actual.equals(expected.toString())) {
+			System.out.println("Expected:" + expected);
+			System.out.println("Actual:  " + actual);
+			return false;
+		}
+		return true;
+	}
+
+	private static void observe(Subject subject, RadixOutput output) {
+		new HexObserver(subject, output);
+		new OctObserver(subject, output);
+		new BinObserver(subject, output);
+	}
+
+	private static void run(Subject subject, int updates) {
+		for (int i = 0; i < updates; i++) {
+			subject.setState(i * 0x9E3779B9);
+		}
+	}
+
+	private static class DiscardingChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int written = src.remaining();
+			src.position(src.limit());
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
+
+// Preallocated ring of state changes with a single writer. Every
+// subscriber runs on its own thread with its own cursor into the
+// ring and catches up on everything published since it last
+// looked in one batch, calling update(int) with the value of each
+// change. A subscriber with nothing to read parks until the next
+// publish() and its thread ends when its Registration is
+// unsubscribed or the bus is closed. The writer only waits when
+// the ring is full, that is when the slowest subscriber is a whole
+// ring behind.
+//
+// publish() must only be called from one thread
+class StateEventBus {
+
+	private static final int SPINS = 100;
+
+	private final int[] values;
+	private final int mask;
+	private volatile long published = -1;
+	private volatile Consumer[] consumers = new Consumer[0];
+	private long gate = -1;
+	private volatile boolean closed;
+
+	// capacity is rounded up to a power of two
+	public StateEventBus(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		values = new int[size];
+		mask = size - 1;
+	}
+
+	public void publish(int value) {
+		if (closed) {
+			throw new IllegalStateException("bus is closed");
+		}
+		long sequence = published + 1;
+		// Wait until no subscriber still needs the slot
+		int spins = 0;
+		while (sequence - values.length > gate) {
+			gate = slowestCursor(sequence - 1);
+			if (sequence - values.length > gate) {
+				if (++spins < SPINS) {
+					Thread.onSpinWait();
+				} else {
+					Thread.yield();
+				}
+			}
+		}
+		values[(int) sequence & mask] = value;
+		published = sequence;
+		for (Consumer consumer : consumers) {
+			// Wakes each parked subscriber once, not on every
+			// publish() until it gets to run
+			if (consumer.parked) {
+				consumer.parked = false;
+				LockSupport.unpark(consumer.thread);
+			}
+		}
+	}
+
+	// The subscriber sees changes published from now on
+	synchronized void subscribe(Registration registration) {
+		if (closed) {
+			throw new IllegalStateException("bus is closed");
+		}
+		Consumer consumer = new Consumer(registration, published);
+		Consumer[] current = consumers;
+		Consumer[] next = new Consumer[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = consumer;
+		consumers = next;
+		consumer.thread.start();
+	}
+
+	// Stops the subscriber's thread; changes it has not read yet
+	// are never delivered
+	synchronized void unsubscribe(Registration registration) {
+		Consumer[] current = consumers;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].registration == registration) {
+				Consumer[] next = new Consumer[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, next.length - i);
+				consumers = next;
+				LockSupport.unpark(current[i].thread);
+				return;
+			}
+		}
+	}
+
+	// Lets every subscriber catch up, then stops them. publish()
+	// fails from then on
+	public void close() throws InterruptedException {
+		Consumer[] current;
+		synchronized (this) {
+			closed = true;
+			current = consumers;
+		}
+		for (Consumer consumer : current) {
+			LockSupport.unpark(consumer.thread);
+			consumer.thread.join();
+		}
+	}
+
+	private long slowestCursor(long fallback) {
+		long slowest = fallback;
+		for (Consumer consumer : consumers) {
+			slowest = Math.min(slowest, consumer.cursor);
+		}
+		return slowest;
+	}
+
+	private class Consumer implements Runnable {
+		private final Registration registration;
+		private final Thread thread;
+		private volatile long cursor;
+		private volatile boolean parked;
+
+		private Consumer(Registration registration, long cursor) {
+			this.registration = registration;
+			this.cursor = cursor;
+			this.thread = new Thread(this, "state-event-bus");
+			thread.setDaemon(true);
+		}
+
+		// An update() that throws is reported to the thread's
+		// uncaught exception handler and the subscriber goes on with
+		// the next change. However the thread ends, the subscriber
+		// leaves the bus so the writer never waits for it
+		@Override
+		public void run() {
+			try {
+				consume();
+			} finally {
+				unsubscribe(registration);
+			}
+		}
+
+		private void consume() {
+			Observer observer = registration.getObserver();
+			int idle = 0;
+			while (registration.isActive()) {
+				long available = published;
+				if (available > cursor) {
+					for (long sequence = cursor + 1; sequence <= available; sequence++) {
+						try {
+							observer.update(values[(int) sequence & mask]);
+						} catch (RuntimeException e) {
+							thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+						}
+					}
+					cursor = available;
+					idle = 0;
+				} else if (closed) {
+					return;
+				} else if (++idle < SPINS) {
+					Thread.onSpinWait();
+				} else {
+					// publish() unparks after moving published, so
+					// checking again after saying so misses nothing
+					parked = true;
+					if (published == cursor && !closed && registration.isActive()) {
+						LockSupport.park(this);
+					}
+					parked = false;
+				}
+			}
+		}
+	}
+}
+
+// Throughput and latency of the synchronous observer loop against
+// StateEventBus, with three observers doing a little arithmetic
+//
+// java behavioral.StateEventBusBenchmark [events] [capacity]
+class StateEventBusBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 16;
+
+		for (int round = 0; round < 3; round++) {
+			long[] publishedAt = new long[events];
+
+			Subject sync = new Subject();
+			LatencyObserver[] syncObservers = observe(sync, publishedAt, events);
+			long start = System.nanoTime();
+			for (int i = 0; i < events; i++) {
+				publishedAt[i] = System.nanoTime();
+				sync.setState(i);
+			}
+			long syncTime = System.nanoTime() - start;
+
+			StateEventBus bus = new StateEventBus(capacity);
+			Subject async = new Subject(bus);
+			LatencyObserver[] busObservers = observe(async, publishedAt, events);
+			start = System.nanoTime();
+			for (int i = 0; i < events; i++) {
+				publishedAt[i] = System.nanoTime();
+				async.setState(i);
+			}
+			bus.close();
+			long busTime = System.nanoTime() - start;
+
+			System.out.printf("round %d: sync %,12.0f events/s, p50 %,d ns, p99 %,d ns | bus %,12.0f events/s, "
+					+ "p50 %,d ns, p99 %,d ns%n", round, events * 1e9 / syncTime, percentile(syncObservers, 0.5),
+					percentile(syncObservers, 0.99), events * 1e9 / busTime, percentile(busObservers, 0.5),
+					percentile(busObservers, 0.99));
+		}
+	}
+
+	private static LatencyObserver[] observe(Subject subject, long[] publishedAt, int events) {
+		LatencyObserver[] observers = new LatencyObserver[3];
+		for (int i = 0; i < observers.length; i++) {
+			observers[i] = new LatencyObserver(subject, publishedAt, events);
+		}
+		return observers;
+	}
+
+	private static long percentile(LatencyObserver[] observers, double fraction) {
+		long worst = 0;
+		for (LatencyObserver observer : observers) {
+			long[] sorted = observer.latencies.clone();
+			Arrays.sort(sorted);
+			worst = Math.max(worst, sorted[(int) (fraction * (sorted.length - 1))]);
+		}
+		return worst;
+	}
+
+	private static class LatencyObserver extends Observer {
+		private final long[] publishedAt;
+		private final long[] latencies;
+		private long sum;
+
+		private LatencyObserver(Subject subject, long[] publishedAt, int events) {
+			this.publishedAt = publishedAt;
+			this.latencies = new long[events];
+			this.subject = subject;
+			this.registration = subject.add(this);
+		}
+
+		@Override
+		public void update(int state) {
+			sum += state ^ (state >>> 3);
+			latencies[state] = System.nanoTime() - publishedAt[state];
+		}
+	}
+}
+
+public class ObserverDemo {
+	public static void main(String[] args) throws InterruptedException {
 		Subject sub = new Subject();
 		// Client configures the number and type of Observers
 		new HexObserver(sub);
-		new OctObserver(sub);
+		Observer octObserver = new OctObserver(sub);
 		new BinObserver(sub);
 		for (int i = 100; i < 105; i++) {
 			System.out.format("\nNumber = %d\n", i);
 			sub.setState(i);
 		}
+
+		// An observer leaves
+		octObserver.getRegistration().unsubscribe();
+		System.out.format("\nNumber = %d\n", 105);
+		sub.setState(105);
+
+		// Updates run on another thread
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Subject asyncSub = new Subject(executor);
+		new HexObserver(asyncSub);
+		System.out.format("\nNumber = %d\n", 200);
+		asyncSub.setState(200);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+
+		// A burst of changes to a conflating Subject: the observer
+		// may skip some, but always ends on the newest state
+		ExecutorService conflatingExecutor = Executors.newSingleThreadExecutor();
+		Subject conflatingSub = new Subject(conflatingExecutor, DeliveryMode.CONFLATING);
+		Observer latestObserver = new HexObserver(conflatingSub);
+		System.out.format("\nNumbers = %d to %d\n", 300, 399);
+		for (int i = 300; i < 400; i++) {
+			conflatingSub.setState(i);
+		}
+		conflatingExecutor.shutdown();
+		conflatingExecutor.awaitTermination(1, TimeUnit.SECONDS);
+		System.out.format("\nSkipped %d states", latestObserver.getRegistration().getConflatedCount());
+
+		// Changes passed through a ring buffer; every observer
+		// gets the value of each change, in order
+		StateEventBus bus = new StateEventBus(1024);
+		Subject busSub = new Subject(bus);
+		new HexObserver(busSub);
+		System.out.format("\nNumbers = %d to %d\n", 500, 504);
+		for (int i = 500; i < 505; i++) {
+			busSub.setState(i);
+		}
+		bus.close();
+
+		// Formatted into a reusable buffer, written out on flush()
+		RadixOutput output = RadixOutput.standardOutput();
+		Subject bufferedSub = new Subject();
+		new HexObserver(bufferedSub, output);
+		new OctObserver(bufferedSub, output);
+		new BinObserver(bufferedSub, output);
+		System.out.format("\nNumber = %d\n", 600);
+		System.out.flush();
+		bufferedSub.setState(600);
+		output.flush();
+
+		// A slow observer behind a buffer of four that keeps the
+		// newest states, and a subscriber that asks for one at a time
+		ExecutorService flowExecutor = Executors.newFixedThreadPool(2);
+		Subject flowSub = new Subject(flowExecutor, DeliveryMode.SYNCHRONOUS);
+		StateSubscription slow = flowSub.subscribe(new HexObserver(flowSub), 4, BackpressurePolicy.DROP_OLDEST);
+		StringBuilder received = new StringBuilder();
+		CountDownLatch done = new CountDownLatch(1);
+		flowSub.subscribe(new Flow.Subscriber<Integer>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(Integer state) {
+				received.append(' ').append(state);
+				if (state == 709) {
+					done.countDown();
+				} else {
+					subscription.request(1);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		}, 16, BackpressurePolicy.BLOCK);
+		System.out.format("\nNumbers = %d to %d\n", 700, 709);
+		for (int i = 700; i < 710; i++) {
+			flowSub.setState(i);
+		}
+		done.await(1, TimeUnit.SECONDS);
+		flowExecutor.shutdown();
+		flowExecutor.awaitTermination(1, TimeUnit.SECONDS);
+		System.out.format("\nOne at a time:%s", received);
+		System.out.format("\nSlow observer dropped %d states", slow.getDroppedCount());
+		System.out.println();
 	}
 }
\ No newline at end of file
@@ -1,5 +1,9 @@
 package behavioral;
 
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
 /**
  * State is a behavioral design pattern that lets an object alter its behavior
  * when its internal state changes. It appears as if the object changed its
@@ -32,7 +36,7 @@ interface PackageState {
 // Context
 class Package {
 
-	private PackageState state = new OrderedState(); // root state
+	private PackageState state = PackageStatus.ORDERED; // root state
 
 	public PackageState getState() {
 		return state;
@@ -55,61 +59,85 @@ class Package {
 	}
 }
 
-class OrderedState implements PackageState {
+// The states hold nothing of a package's own, so every package
+// shares the same three. Where a state goes next, or back to, is
+// looked up in tables built once; no transition allocates
+enum PackageStatus implements PackageState {
+	ORDERED("Package ordered, not delivered to the post office yet."),
+	DELIVERED("Package delivered to post office, not received yet."),
+	RECEIVED("Package received by the client.");
 
-	@Override
-	public void next(Package pkg) {
-		pkg.setState(new DeliveredState());
-	}
+	private static final PackageStatus[] NEXT = { DELIVERED, RECEIVED, null };
+	private static final PackageStatus[] PREV = { null, ORDERED, DELIVERED };
 
-	@Override
-	public void prev(Package pkg) {
-		System.out.println("The package is in its root state.");
-	}
+	private final String status;
 
-	@Override
-	public void printStatus() {
-		System.out.println("Package ordered, not delivered to the post office yet.");
+	PackageStatus(String status) {
+		this.status = status;
 	}
 
-}
-
-class DeliveredState implements PackageState {
-
 	@Override
 	public void next(Package pkg) {
-		pkg.setState(new ReceivedState());
+		PackageStatus next = NEXT[ordinal()];
+		if (next == null) {
+			System.out.println("This package is already received by a client.");
+		} else {
+			pkg.setState(next);
+		}
 	}
 
 	@Override
 	public void prev(Package pkg) {
-		pkg.setState(new OrderedState());
+		PackageStatus prev = PREV[ordinal()];
+		if (prev == null) {
+			System.out.println("The package is in its root state.");
+		} else {
+			pkg.setState(prev);
+		}
 	}
 
 	@Override
 	public void printStatus() {
-		System.out.println("Package delivered to post office, not received yet.");
+		System.out.println(status);
 	}
-
 }
 
-class ReceivedState implements PackageState {
+// Moves a package back and forth between its states and measures
+// what that allocates with the JDK's per-thread allocation counter.
+// Exits with 1 if a transition allocates
+//
+// java behavioral.PackageTransitionAllocationCheck [transitions]
+class PackageTransitionAllocationCheck {
 
-	@Override
-	public void next(Package pkg) {
-		System.out.println("This package is already received by a client.");
-	}
+	public static void main(String[] args) {
+		int transitions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
 
-	@Override
-	public void prev(Package pkg) {
-		pkg.setState(new DeliveredState());
+		Package pkg = new Package();
+		run(pkg, transitions);
+		long before = threads.getThreadAllocatedBytes(thread);
+		run(pkg, transitions);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.printf("%d transitions, %d bytes allocated, ending %s%n", transitions, allocated, pkg.getState());
+		System.out.println(allocated == 0 ? "OK" : "FAILED");
+		if (allocated != 0) {
+			System.exit(1);
+		}
 	}
 
-	@Override
-	public void printStatus() {
-		System.out.println("Package received by the client.");
+	// ORDERED, DELIVERED, RECEIVED, DELIVERED, ORDERED and so on,
+	// never stepping past either end
+	private static void run(Package pkg, int transitions) {
+		for (int i = 0; i < transitions; i++) {
+			if ((i & 2) == 0) {
+				pkg.nextState();
+			} else {
+				pkg.previousState();
+			}
+		}
 	}
-
 }
 
 public class StateDemo {